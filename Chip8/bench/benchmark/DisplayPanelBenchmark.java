@@ -0,0 +1,85 @@
+package benchmark;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import emulator.Chip8;
+import emulator.exception.EmulatorException;
+import gui.DisplayPanel;
+
+/**
+ * Measures <code>DisplayPanel.draw()</code> at every supported scale.<br>
+ * The framebuffer is a full screen of hex digits, and results are reported in nanoseconds per frame, 
+ * both for handing a frame over, and for the whole trip until the event dispatch thread has shown it. The latter
+ * alternates between the full screen and a screen changed by a single 8x5 sprite.
+ * The panel is never shown, so this runs headless.
+ *
+ * @author Troy Shaw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DisplayPanelBenchmark {
+
+	@Param({"1", "2", "4", "8"})
+	public int scale;
+
+	private Chip8 chip8;
+	private DisplayPanel panel;
+	//the full screen with one digit erased, so showing it after the full screen only changes that sprite
+	private long[] erased;
+	private boolean toggle;
+	private final Runnable update = new Runnable() {
+		@Override
+		public void run() {
+			panel.update();
+		}
+	};
+
+	@Setup
+	public void setup() throws EmulatorException {
+		chip8 = new Chip8();
+		chip8.loadProgram(Roms.assemble(Roms.DRAW));
+
+		//run until the screen is full of digits, which is just before the loop jumps back to the clear
+		do {
+			chip8.tick();
+		} while (chip8.getPC() != 0x21E);
+
+		panel = new DisplayPanel(chip8);
+		panel.resizeDisplay(scale);
+
+		erased = chip8.getPixelData().clone();
+		for (int j = 8; j < 13; j++) erased[j] &= ~(0xFFL << 48);
+	}
+
+	@Benchmark
+	public void draw() {
+		panel.draw(chip8.getPixelData());
+	}
+
+	@Benchmark
+	public void drawSprite() throws InvocationTargetException, InterruptedException {
+		toggle = !toggle;
+		panel.draw(toggle ? erased : chip8.getPixelData());
+		//the frame is shown once everything queued on the event dispatch thread before us has run
+		SwingUtilities.invokeAndWait(update);
+	}
+}
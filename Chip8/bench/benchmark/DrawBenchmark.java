@@ -0,0 +1,77 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import emulator.Chip8;
+import emulator.exception.EmulatorException;
+
+/**
+ * Measures the emulators drawing opcodes, DXYN and 00E0.<br>
+ * Since <code>draw()</code> and <code>clearScreen()</code> are package-private to <code>emulator</code> they are driven
+ * through <code>tick()</code>, with each program being a tight loop around the opcode. Results are reported in nanoseconds per operation.
+ *
+ * @author Troy Shaw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrawBenchmark {
+
+	private Chip8 sprite, clear, frame;
+
+	@Setup
+	public void setup() {
+		sprite = new Chip8();
+		sprite.loadProgram(Roms.assemble(Roms.SPRITE));
+		clear = new Chip8();
+		clear.loadProgram(Roms.assemble(Roms.CLEAR));
+		frame = new Chip8();
+		frame.loadProgram(Roms.assemble(Roms.DRAW));
+	}
+
+	/**
+	 * A single 8x5 sprite draw plus the jump back to it.
+	 */
+	@Benchmark
+	public int draw() throws EmulatorException {
+		sprite.tick();
+		sprite.tick();
+		return sprite.getRegister()[15];
+	}
+
+	/**
+	 * A single screen clear plus the jump back to it.
+	 */
+	@Benchmark
+	public boolean clearScreen() throws EmulatorException {
+		clear.tick();
+		clear.tick();
+		return clear.getDrawFlag();
+	}
+
+	/**
+	 * A full frame of 60 sprites after a clear, giving ns/frame.
+	 */
+	@Benchmark
+	public int frame() throws EmulatorException {
+		do {
+			frame.tick();
+		} while (frame.getPC() != 0x200);
+
+		return frame.getRegister()[15];
+	}
+}
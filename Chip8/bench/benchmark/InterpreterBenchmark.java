@@ -0,0 +1,59 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import emulator.Chip8;
+import emulator.exception.EmulatorException;
+
+/**
+ * Measures <code>Chip8.tick()</code> under different opcode mixes, through <code>Chip8.execute()</code> 
+ * with and without the recompiler.<br>
+ * Results are reported in instructions per second.
+ *
+ * @author Troy Shaw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+	private static final int TICKS = 1000;
+
+	@Param({"alu", "branch", "draw", "mixed"})
+	public String program;
+
+	@Param({"false", "true"})
+	public boolean recompiler;
+
+	private Chip8 chip8;
+
+	@Setup
+	public void setup() {
+		chip8 = new Chip8();
+		chip8.setRecompilerEnabled(recompiler);
+		chip8.loadProgram(Roms.named(program));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TICKS)
+	public int tick() throws EmulatorException {
+		chip8.execute(TICKS);
+		return chip8.getPC();
+	}
+}
@@ -0,0 +1,135 @@
+package benchmark;
+
+/**
+ * Small hand-assembled programs used by the benchmarks.<br>
+ * Each program is an endless loop, so it can be ticked for as long as a benchmark needs.
+ *
+ * @author Troy Shaw
+ */
+final class Roms {
+
+	private Roms() {
+		//stop instantiation
+	}
+
+	/** Register arithmetic only: loads, adds, logic ops, shifts and a backwards jump */
+	static final int[] ALU = {
+			0x6005,	// 200 V0 = 5
+			0x6103,	// 202 V1 = 3
+			0x7001,	// 204 V0 += 1
+			0x8014,	// 206 V0 += V1
+			0x8215,	// 208 V2 -= V1
+			0x8302,	// 20A V3 &= V0
+			0x8401,	// 20C V4 |= V0
+			0x8503,	// 20E V5 ^= V0
+			0x8606,	// 210 V6 >>= 1
+			0x870E,	// 212 V7 <<= 1
+			0x8817,	// 214 V8 = V1 - V8
+			0x1204	// 216 jump 204
+	};
+
+	/** Branch heavy code: skips, subroutine calls and returns */
+	static final int[] BRANCH = {
+			0x6000,	// 200 V0 = 0
+			0x7001,	// 202 V0 += 1
+			0x3080,	// 204 skip if V0 == 0x80
+			0x120C,	// 206 jump 20C
+			0x6000,	// 208 V0 = 0
+			0x1202,	// 20A jump 202
+			0x2212,	// 20C call 212
+			0x1202,	// 20E jump 202
+			0x0000,	// 210 (unused)
+			0x4100,	// 212 skip if V1 != 0
+			0x7101,	// 214 V1 += 1
+			0x5010,	// 216 skip if V0 == V1
+			0x7201,	// 218 V2 += 1
+			0x9010,	// 21A skip if V0 != V1
+			0x7301,	// 21C V3 += 1
+			0x00EE	// 21E return
+	};
+
+	/** Draw heavy code: a field of hex digits redrawn with a clear each frame */
+	static final int[] DRAW = {
+			0x00E0,	// 200 clear screen
+			0x6000,	// 202 V0 = 0 (digit)
+			0x6100,	// 204 V1 = 0 (x)
+			0x6200,	// 206 V2 = 0 (y)
+			0xF029,	// 208 I = font(V0)
+			0xD125,	// 20A draw 8x5 at (V1, V2)
+			0x7105,	// 20C x += 5
+			0x7001,	// 20E digit += 1
+			0x300C,	// 210 skip if digit == 12
+			0x1208,	// 212 jump 208
+			0x7206,	// 214 y += 6
+			0x6000,	// 216 digit = 0
+			0x6100,	// 218 x = 0
+			0x321E,	// 21A skip if y == 30
+			0x1208,	// 21C jump 208
+			0x1200	// 21E jump 200
+	};
+
+	/** A single 8x5 sprite drawn over and over */
+	static final int[] SPRITE = {
+			0xD125,	// 200 draw 8x5 at (V1, V2)
+			0x1200	// 202 jump 200
+	};
+
+	/** A screen clear over and over */
+	static final int[] CLEAR = {
+			0x00E0,	// 200 clear screen
+			0x1200	// 202 jump 200
+	};
+
+	/** A game-like mix: timer polling, input checks, arithmetic, memory stores and a few sprite draws */
+	static final int[] MIXED = {
+			0x6A05,	// 200 VA = 5
+			0xFA15,	// 202 delay = VA
+			0xFB07,	// 204 VB = delay
+			0x6E01,	// 206 VE = 1 (key)
+			0xEE9E,	// 208 skip if key VE pressed
+			0x7C01,	// 20A VC += 1
+			0x8CB4,	// 20C VC += VB
+			0xA300,	// 20E I = 300
+			0xFC33,	// 210 BCD of VC
+			0xF265,	// 212 load V0..V2
+			0x6300,	// 214 V3 = 0
+			0xF029,	// 216 I = font(V0)
+			0xD345,	// 218 draw digit at (V3, V4)
+			0xD345,	// 21A undraw digit at (V3, V4)
+			0x7D01,	// 21C VD += 1
+			0x3D00,	// 21E skip if VD == 0
+			0x1204,	// 220 jump 204
+			0x1200	// 222 jump 200
+	};
+
+	/**
+	 * Returns the given opcodes as a program byte array.
+	 * @param opcodes the 16-bit opcodes
+	 * @return the program
+	 */
+	static byte[] assemble(int[] opcodes) {
+		byte[] program = new byte[opcodes.length * 2];
+
+		for (int i = 0; i < opcodes.length; i++) {
+			program[i * 2] = (byte) (opcodes[i] >> 8);
+			program[i * 2 + 1] = (byte) opcodes[i];
+		}
+
+		return program;
+	}
+
+	/**
+	 * Returns the program of the given name, one of alu, branch, draw, or mixed.
+	 * @param name the program name
+	 * @return the program
+	 */
+	static byte[] named(String name) {
+		switch (name) {
+		case "alu":		return assemble(ALU);
+		case "branch":	return assemble(BRANCH);
+		case "draw":	return assemble(DRAW);
+		case "mixed":	return assemble(MIXED);
+		default: throw new IllegalArgumentException("Unknown program: " + name);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package batch;
+
+import java.io.File;
+
+/**
+ * The outcome of running a single ROM headlessly for a number of cycles.<br>
+ * Contains the final framebuffer hash, the number of instructions executed, and the error (if any) that stopped the run.
+ *
+ * @author Troy Shaw
+ */
+public class BatchResult {
+
+	private final File rom;
+	private final long frameHash;
+	private final long instructions;
+	private final Exception error;
+
+	/**
+	 * Constructs a new result.
+	 * 
+	 * @param rom the ROM file that was run
+	 * @param frameHash the hash of the framebuffer when the run finished
+	 * @param instructions the number of instructions that were successfully executed
+	 * @param error the exception that stopped the run, or null if it ran all cycles
+	 */
+	public BatchResult(File rom, long frameHash, long instructions, Exception error) {
+		this.rom = rom;
+		this.frameHash = frameHash;
+		this.instructions = instructions;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the ROM file that was run.
+	 * @return the file
+	 */
+	public File getRom() {
+		return rom;
+	}
+
+	/**
+	 * Returns the 64-bit hash of the final framebuffer.
+	 * @return the hash
+	 */
+	public long getFrameHash() {
+		return frameHash;
+	}
+
+	/**
+	 * Returns the number of instructions that were executed without error.
+	 * @return the instruction count
+	 */
+	public long getInstructions() {
+		return instructions;
+	}
+
+	/**
+	 * Returns the exception that stopped the run early, or null if the run completed.
+	 * @return the error
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		String err = error == null ? "OK" : error.getClass().getSimpleName() + ": " + error.getMessage();
+		return rom.getName() + "\t" + String.format("%016X", frameHash) + "\t" + instructions + "\t" + err;
+	}
+}
@@ -0,0 +1,324 @@
+package batch;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import emulator.Chip8;
+import emulator.Logger;
+import emulator.Profiler;
+import emulator.Scheduler;
+import emulator.TraceWriter;
+import emulator.exception.EmulatorException;
+import fileio.Loader;
+
+/**
+ * Runs every ROM in a directory headlessly for a fixed number of cycles (instructions), in parallel on a fork-join pool.<br>
+ * Nothing presses keys in a batch run, so a ROM which waits for a key (FX0A) is stopped there, as it would wait forever.
+ * For each ROM the final framebuffer hash, the instruction count and any error is reported.
+ * If a profile directory is given, each ROM is also profiled and its profile written there as 
+ * <code>&lt;rom&gt;.csv</code> and an annotated listing <code>&lt;rom&gt;.lst</code>. Likewise if a trace directory
+ * is given, each ROM's execution is traced to <code>&lt;rom&gt;.trace</code> (see <code>TraceReader</code>).
+ * <p>
+ * With <code>-log</code> every event logged during the run (see <code>Logger</code>) is printed afterwards.
+ * <p>
+ * Usage: <code>BatchRunner &lt;rom directory&gt; &lt;cycles&gt; [threads] [-recompile] [-profile &lt;dir&gt;] 
+ * [-trace &lt;dir&gt;] [-log]</code>
+ *
+ * @author Troy Shaw
+ */
+public class BatchRunner {
+
+	private final long cycles;
+	private final ForkJoinPool pool;
+	private boolean recompile;
+	private File profileDir, traceDir;
+
+	/**
+	 * Constructs a new batch runner, which runs each ROM for the given number of cycles.
+	 * 
+	 * @param cycles the number of instructions to run each ROM for
+	 * @param threads the parallelism of the pool
+	 */
+	public BatchRunner(long cycles, int threads) {
+		if (cycles < 0) throw new IllegalArgumentException("cycles cannot be negative");
+		if (threads <= 0) throw new IllegalArgumentException("threads must be positive");
+
+		this.cycles = cycles;
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Sets whether the emulators use the recompiler, rather than only interpreting.
+	 * @param recompile true to use the recompiler
+	 */
+	public void setRecompile(boolean recompile) {
+		this.recompile = recompile;
+	}
+
+	/**
+	 * Sets the directory profiles are written to, or null to not profile.
+	 * @param profileDir the directory
+	 */
+	public void setProfileDir(File profileDir) {
+		this.profileDir = profileDir;
+	}
+
+	/**
+	 * Sets the directory traces are written to, or null to not trace.
+	 * @param traceDir the directory
+	 */
+	public void setTraceDir(File traceDir) {
+		this.traceDir = traceDir;
+	}
+
+	/**
+	 * Runs all the files in the given directory, returning the results in file name order.
+	 * 
+	 * @param dir the directory of ROMs
+	 * @return the results
+	 */
+	public List<BatchResult> run(File dir) {
+		if (dir == null) throw new NullPointerException();
+		if (!dir.isDirectory()) throw new IllegalArgumentException("Must be a directory: " + dir);
+
+		List<File> roms = new ArrayList<File>();
+		File[] files = dir.listFiles();
+		if (files != null) for (File f : files) if (f.isFile()) roms.add(f);
+
+		return run(roms);
+	}
+
+	/**
+	 * Runs each of the given ROMs, returning the results in file name order.
+	 * 
+	 * @param roms the ROM files
+	 * @return the results
+	 */
+	public List<BatchResult> run(List<File> roms) {
+		File[] sorted = roms.toArray(new File[roms.size()]);
+		Arrays.sort(sorted);
+
+		List<RomTask> tasks = new ArrayList<RomTask>();
+		for (File f : sorted) tasks.add(new RomTask(f));
+
+		pool.invoke(new AllTask(tasks));
+
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		for (RomTask t : tasks) results.add(t.join());
+
+		return results;
+	}
+
+	/**
+	 * Shuts down the pool. This runner cannot be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Runs a single ROM on a fresh emulator.
+	 * 
+	 * @param rom the ROM file
+	 * @return the result
+	 */
+	private BatchResult runRom(File rom) {
+		Chip8 chip8 = new Chip8();
+		chip8.setRecompilerEnabled(recompile);
+		if (profileDir != null) chip8.setProfiler(new Profiler());
+
+		if (traceDir != null) {
+			try {
+				chip8.setTracer(new TraceWriter(new File(traceDir, rom.getName() + ".trace"), true));
+			} catch (IOException e) {
+				return new BatchResult(rom, hash(chip8), 0, e);
+			}
+		}
+
+		try {
+			return runRom(rom, chip8);
+		} finally {
+			if (profileDir != null) writeProfile(rom, chip8);
+			if (traceDir != null) closeTrace(rom, chip8);
+		}
+	}
+
+	/**
+	 * Runs a single ROM on the given emulator.
+	 * 
+	 * @param rom the ROM file
+	 * @param chip8 the emulator
+	 * @return the result
+	 */
+	private BatchResult runRom(File rom, Chip8 chip8) {
+		try {
+			chip8.loadProgram(Loader.load(rom));
+
+			//run up to a frames worth of instructions at the interactive speed, then tick the timers
+			long count = 0;
+			while (count < cycles) {
+				count += chip8.execute((int) Math.min(Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME, cycles - count));
+				chip8.tickTimers();
+
+				//execute() stops early at a wait for a key, which no one will ever press
+				if (chip8.isWaitingForKey()) break;
+			}
+		} catch (EmulatorException e) {
+			return new BatchResult(rom, hash(chip8), chip8.getInstructionCount(), e);
+		} catch (IOException e) {
+			return new BatchResult(rom, hash(chip8), chip8.getInstructionCount(), e);
+		} catch (RuntimeException e) {
+			//bad programs can still index outside memory, etc. We don't want one ROM to stop the whole sweep
+			return new BatchResult(rom, hash(chip8), chip8.getInstructionCount(), e);
+		}
+
+		return new BatchResult(rom, hash(chip8), chip8.getInstructionCount(), null);
+	}
+
+	/**
+	 * Writes the emulators profile of the ROM to the profile directory. Failures are reported but don't stop the run.
+	 * 
+	 * @param rom the ROM file
+	 * @param chip8 the emulator
+	 */
+	private void writeProfile(File rom, Chip8 chip8) {
+		Profiler profiler = chip8.getProfiler();
+
+		try {
+			Writer csv = new FileWriter(new File(profileDir, rom.getName() + ".csv"));
+			try {
+				profiler.writeCsv(chip8.getMemory(), csv);
+			} finally {
+				csv.close();
+			}
+
+			Writer listing = new FileWriter(new File(profileDir, rom.getName() + ".lst"));
+			try {
+				profiler.writeListing(chip8.getMemory(), listing);
+			} finally {
+				listing.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write profile of " + rom.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the emulators trace of the ROM. Failures are reported but don't stop the run.
+	 * 
+	 * @param rom the ROM file
+	 * @param chip8 the emulator
+	 */
+	private void closeTrace(File rom, Chip8 chip8) {
+		try {
+			chip8.getTracer().close();
+		} catch (IOException e) {
+			System.err.println("Could not write trace of " + rom.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns a 64-bit FNV-1a hash of the emulators framebuffer, read row by row, a byte at a time.
+	 * 
+	 * @param chip8 the emulator
+	 * @return the hash
+	 */
+	static long hash(Chip8 chip8) {
+		long[] pixels = chip8.getPixelData();
+		long h = 0xCBF29CE484222325L;
+
+		for (long row : pixels) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				h ^= (row >>> shift) & 0xFF;
+				h *= 0x100000001B3L;
+			}
+		}
+
+		return h;
+	}
+
+	/**
+	 * Task which runs a single ROM.
+	 */
+	private class RomTask extends RecursiveTask<BatchResult> {
+		private final File rom;
+
+		RomTask(File rom) {
+			this.rom = rom;
+		}
+
+		@Override
+		protected BatchResult compute() {
+			return runRom(rom);
+		}
+	}
+
+	/**
+	 * Task which forks all the ROM tasks and waits for them to finish.
+	 */
+	private static class AllTask extends RecursiveAction {
+		private final List<RomTask> tasks;
+
+		AllTask(List<RomTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	public static void main(String[] args) {
+		//options can go anywhere, everything else is positional
+		List<String> positional = new ArrayList<String>();
+		boolean recompile = false, log = false;
+		File profileDir = null, traceDir = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-recompile")) recompile = true;
+			else if (args[i].equals("-log")) log = true;
+			else if (args[i].equals("-profile") && i + 1 < args.length) profileDir = new File(args[++i]);
+			else if (args[i].equals("-trace") && i + 1 < args.length) traceDir = new File(args[++i]);
+			else positional.add(args[i]);
+		}
+
+		if (positional.size() < 2) {
+			System.err.println("Usage: BatchRunner <rom directory> <cycles> [threads] [-recompile] [-profile <dir>] [-trace <dir>] [-log]");
+			System.exit(1);
+		}
+
+		long cycles = Long.parseLong(positional.get(1));
+		int threads = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : Runtime.getRuntime().availableProcessors();
+
+		if (profileDir != null) profileDir.mkdirs();
+		if (traceDir != null) traceDir.mkdirs();
+		if (log) Logger.setLevel(Logger.DEBUG);
+
+		BatchRunner runner = new BatchRunner(cycles, threads);
+		runner.setRecompile(recompile);
+		runner.setProfileDir(profileDir);
+		runner.setTraceDir(traceDir);
+		for (BatchResult r : runner.run(new File(positional.get(0)))) System.out.println(r);
+		runner.shutdown();
+
+		if (log) {
+			Logger.drain(new Logger.Sink() {
+				@Override
+				public void event(long sequence, long time, int level, int code, long a, long b) {
+					System.out.println(Logger.levelName(level) + "\t" + Logger.format(code, a, b));
+				}
+			});
+			if (Logger.getLost() != 0) System.out.println(Logger.getLost() + " events were lost");
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package batch;
+
+import java.io.File;
+import java.io.IOException;
+
+import emulator.Chip8;
+import emulator.InputMovie;
+import emulator.exception.EmulatorException;
+import fileio.Loader;
+
+/**
+ * Plays an input movie back headlessly, as fast as possible. <br>
+ * The final framebuffer hash and instruction count are printed, along with how long it took. As a movie always
+ * runs the same way, the hash can be compared between builds to catch regressions, and the time to compare speed.
+ * <p>
+ * Usage: <code>MovieRunner &lt;rom&gt; &lt;movie&gt; [-recompile]</code>
+ *
+ * @author Troy Shaw
+ */
+public class MovieRunner {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: MovieRunner <rom> <movie> [-recompile]");
+			System.exit(1);
+		}
+
+		byte[] program = null;
+		try {
+			program = Loader.load(new File(args[0]));
+		} catch (IOException e) {
+			System.err.println("Error while loading file: " + e.getMessage());
+			System.exit(1);
+		}
+		InputMovie movie = InputMovie.read(new File(args[1]));
+
+		Chip8 chip8 = new Chip8();
+		chip8.setRecompilerEnabled(args.length > 2 && args[2].equals("-recompile"));
+
+		long start = System.nanoTime();
+		String error = "OK";
+		try {
+			movie.play(chip8, program);
+		} catch (EmulatorException e) {
+			error = e.getClass().getSimpleName() + ": " + e.getMessage();
+		}
+		long nanos = System.nanoTime() - start;
+
+		System.out.println(String.format("%016X\t%d frames\t%d instructions\t%.1f ms\t%.1f M instructions/s\t%s", 
+				BatchRunner.hash(chip8), chip8.getFrameCount(), chip8.getInstructionCount(), nanos / 1e6, 
+				chip8.getInstructionCount() * 1e3 / nanos, error));
+	}
+}
@@ -1,9 +1,9 @@
 package emulator;
 
-import java.awt.Toolkit;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import emulator.exception.EmulatorException;
 import emulator.exception.InvalidKeyException;
@@ -12,7 +12,6 @@ import emulator.exception.RegisterOutOfBoundsException;
 import emulator.exception.StackOverflowException;
 import emulator.exception.StackUnderflowException;
 import emulator.exception.UnknownOpcodeException;
-import gui.Controller;
 
 /**
  * The Chip8 emulator.
@@ -21,20 +20,24 @@ import gui.Controller;
  *  <ul>
  * <li>PC - program counter</li>
  * <li>I - carry flag</li>
- * <li>4096 byte main memory</li>
+ * <li>4096 byte main memory, in pages shared with other emulators running the same program until written</li>
  * <li>16 8-bit registers</li>
  * <li>16 level stack for subroutines</li>
  * <li>SP - stack pointer</li>
- * <li>64 * 32 boolean array of pixel data</li>
- * <li>draw flag indicating if we need to redraw this tick </li>
- * <li>16 length boolean array for held keys</li>
+ * <li>64 * 32 pixel data, packed as one long per row</li>
+ * <li>draw flag indicating if we need to redraw </li>
+ * <li>the held keys, a bit per key</li>
  * <li>delay timer, counting down to 0 at 60hz</li>
  * <li>sound timer, counting down to 0 at 60hz, making a beep each time it reaches 0</li>
  * </UL>
+ * <p>
+ * The emulator has no threads or GUI dependencies of its own. Whoever drives it is responsible for calling 
+ * <code>tick()</code> at the desired speed and <code>tickTimers()</code> at 60hz. Alternatively the timers can be 
+ * driven by a <code>FrameClock</code> (see <code>setClock()</code>), which one thread runs for any number of emulators.
  *
  * @author Troy Shaw
  */
-public class Chip8 implements KeyController {
+public class Chip8 implements KeyController, AutoCloseable {
 
 	/** Width of default emulator in pixels */
 	public static final int WIDTH = 64;
@@ -43,55 +46,274 @@ public class Chip8 implements KeyController {
 	public static final int HEIGHT = 32;
 
 	private static final int MAX_REGISTERS = 16;
-	private static final int MAX_MEMORY = 4096;
+	static final int MAX_MEMORY = 4096;
+	//the longest loop, in instructions, that we check for being idle
+	static final int MAX_IDLE_LOOP = 8;
+	//how many times a loop is skipped over after it was found not to be idle, before we check it again
+	private static final int IDLE_BACKOFF = 16;
+	//the states of the jump at an address in idleLoops. Higher values count down to IDLE_CHECK
+	private static final byte IDLE_UNCHECKED = 0, IDLE_CHECK = 1, IDLE_NEVER = -1;
 	private static final int MAX_STACK = 16;
 
-	private boolean[][] pixels;
+	//identifies a save state ("C8SS"), and the version of its layout
+	private static final int STATE_MAGIC = 0x53533843;
+	private static final short STATE_VERSION = 2;
+
+	/** 
+	 * Size of a save state in bytes. <br>
+	 * magic (4), version (2), memory (4096), V0-VF (16), I (2), PC (2), SP (1), stack (32), 
+	 * delay timer (1), sound timer (1), keys (2), pixels (256), instruction count (8), frame count (8) 
+	 * and random number generator (8).
+	 */
+	public static final int STATE_SIZE = 4 + 2 + MAX_MEMORY + MAX_REGISTERS + 2 + 2 + 1 + MAX_STACK * 2 + 1 + 1 + 2 + HEIGHT * 8 
+			+ 8 + 8 + 8;
+
+	//one long per row, with the most significant bit being the leftmost pixel
+	private long[] pixels;
 	private boolean drawFlag;
 
-	private int[] memory;
-	private int[] register;
+	//the memory, in pages shared with the image of the program until written (see MemoryImage)
+	private final byte[][] pages = new byte[MemoryImage.PAGES][];
+	//the image of the loaded program, and the pages which are our own rather than the image's, a bit per page
+	private MemoryImage image = MemoryImage.BLANK;
+	private int ownedPages;
+	//the pages we have used as our own, kept to use again
+	private final byte[][] ownPages = new byte[MemoryImage.PAGES][];
+
+	//these are package-private so the recompiler, and the code it generates, can access them directly
+	int[] register;
+	int PC, I;
+	volatile int delayTimer, soundTimer;
+	//number of instructions successfully executed since the program was loaded
+	long instructions;
+
+	//the instruction cache. Each address has a decoded kind (see Decoder) and its operands
+	byte[] kinds;
+	byte[] argX, argY;
+	short[] argImm;
+
 	private int[] stack;
-	private int PC, SP, I;
-	private boolean[] keys;
-	private volatile int delayTimer, soundTimer;
+	private int SP;
+	//the held keys, a bit per key
+	private int keys;
+	//the keys pressed which no instruction has looked at yet, and when each was pressed
+	private int freshKeys;
+	private final long[] pressTimes = new long[16];
+	//set while FX0A is waiting for a key, as running on would only repeat it
+	boolean waitingForKey;
+	//set when an instruction needs execute() to stop and look: FX0A waiting, or a jump closing a loop which could be idle
+	boolean yielded;
+	//for each jump, if it closes a loop which could be idle (see checkIdleLoop)
+	private final byte[] idleLoops = new byte[MAX_MEMORY];
+	//the jump which just closed a loop that could be idle, or -1. Set for execute() to check the loop
+	int idleLoop = -1;
+	//the registers before going round a loop, to see if it changed them
+	private final int[] idleRegisters = new int[MAX_REGISTERS];
+	//the number of instructions skipped as they were in idle loops
+	private long idleInstructions;
+	//the latency of the key presses consumed so far, from being pressed to being looked at
+	private long latencyCount, latencyTotal, latencyMax, latencyLast;
+	private Speaker speaker;
+	//the clock driving the timers, if any, and its frame when the timers were last counted down
+	private FrameClock clock;
+	private long clockFrame;
+	//the optional recompiler. If null, all instructions are interpreted
+	private Recompiler recompiler;
+	private Profiler profiler;
+	private TraceWriter tracer;
+
+	//the number of times the timers have ticked, which is the number of frames run
+	private long frames;
+	//the seed of the random number generator, and its state
+	private long seed = System.nanoTime();
+	private long random;
 
 	/**
 	 * Constructs a new Chip8 emulator. <br>
 	 * A game can then be loaded with a call to <code>loadProgram()</code> to begin a game.
 	 */
 	public Chip8() {
-		keys 		= new boolean[16];
-		pixels 		= new boolean[WIDTH][HEIGHT];
+		pixels 		= new long[HEIGHT];
 		drawFlag 	= false;
 		stack 		= new int[MAX_STACK];
 		register 	= new int[MAX_REGISTERS];
-		memory 		= new int[MAX_MEMORY];
-
-		//make our timer which will constantly count down at 60hz, decrementing the two counters
-		Timer timer = new Timer(true);
-		TimerTask task = new TimerTask() {
-			@Override
-			public void run() {
-				//if sound is 1, it will next be decremented to 0, so we'll make a beep sound
-				if (soundTimer == 1 && Controller.SOUND_ENABLED) Toolkit.getDefaultToolkit().beep();
-				delayTimer = Math.max(delayTimer - 1, 0);
-				soundTimer = Math.max(soundTimer - 1, 0);
-
-				//this is an optimisation if needed
-				//max(num, 0) = (num - 1) & ~((num - 1) >> 28);
-				//delayTimer = (delayTimer - 1) & ~((delayTimer - 1) >> 28);
-				//soundTimer = (soundTimer - 1) & ~((soundTimer - 1) >> 28);
-			}
-		};
+		kinds 		= new byte[MAX_MEMORY];
+		argX 		= new byte[MAX_MEMORY];
+		argY 		= new byte[MAX_MEMORY];
+		argImm 		= new short[MAX_MEMORY];
+
+		System.arraycopy(image.pages, 0, pages, 0, MemoryImage.PAGES);
+		Arrays.fill(kinds, (byte) Decoder.UNDECODED);
+	}
+
+	/**
+	 * Counts the delay and sound timers down by one, stopping at 0. This should be called at 60hz. <br>
+	 * If the sound timer reaches 0 the speaker (if any) will beep.
+	 */
+	public void tickTimers() {
+		frames++;
+
+		//if sound is 1, it will next be decremented to 0, so we'll make a beep sound
+		if (soundTimer == 1 && speaker != null) speaker.beep();
+		delayTimer = Math.max(delayTimer - 1, 0);
+		soundTimer = Math.max(soundTimer - 1, 0);
+
+		//this is an optimisation if needed
+		//max(num, 0) = (num - 1) & ~((num - 1) >> 28);
+		//delayTimer = (delayTimer - 1) & ~((delayTimer - 1) >> 28);
+		//soundTimer = (soundTimer - 1) & ~((soundTimer - 1) >> 28);
+	}
+
+	/**
+	 * Counts the timers down once for each frame the clock has counted since they were last counted down.
+	 */
+	private void countClockFrames() {
+		long now = clock.getFrame();
+		long n = now - clockFrame;
+		clockFrame = now;
+
+		//the timers are at 0 after 255 frames, so after that only the frame count changes
+		if (n > 255) {
+			frames += n - 255;
+			n = 255;
+		}
+		for (; n > 0; n--) tickTimers();
+	}
+
+	/**
+	 * Sets the speaker which is notified when the sound timer reaches 0. <br>
+	 * A null speaker means the emulator is silent.
+	 * @param speaker the speaker
+	 */
+	public void setSpeaker(Speaker speaker) {
+		this.speaker = speaker;
+	}
+
+	/**
+	 * Sets the clock which drives the timers, replacing any previous one. A null clock means whoever drives the 
+	 * emulator calls <code>tickTimers()</code> itself. <br>
+	 * The clock only counts the frames that pass; the timers are counted down once for each at the start of each 
+	 * call to <code>execute()</code>, on the thread running the emulator. So the clock never touches the emulator, 
+	 * and does no work for it at all.
+	 * 
+	 * @param clock the clock, such as <code>FrameClock.shared()</code>
+	 */
+	public void setClock(FrameClock clock) {
+		if (this.clock != null) this.clock.detach();
+		this.clock = clock;
+
+		if (clock != null) {
+			clock.attach();
+			clockFrame = clock.getFrame();
+		}
+	}
+
+	/**
+	 * Returns the clock which drives the timers.
+	 * @return the clock, or null if there isn't one
+	 */
+	public FrameClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Detaches the emulator from its clock, if it has one, so it no longer keeps the clock running. <br>
+	 * The emulator can still be used afterwards, with its timers driven by hand or by a new clock.
+	 */
+	@Override
+	public void close() {
+		setClock(null);
+	}
+
+	/**
+	 * Enables or disables the recompiler. <br>
+	 * When enabled, <code>execute()</code> runs frequently used blocks of instructions as compiled JVM bytecode 
+	 * rather than interpreting them. <code>tick()</code> always interprets.
+	 * @param enabled true to enable the recompiler
+	 */
+	public void setRecompilerEnabled(boolean enabled) {
+		if (enabled && recompiler == null) recompiler = new Recompiler(this);
+		else if (!enabled) recompiler = null;
+	}
+
+	/**
+	 * Returns if the recompiler is enabled.
+	 * @return true if the recompiler is enabled
+	 */
+	public boolean isRecompilerEnabled() {
+		return recompiler != null;
+	}
+
+	/**
+	 * Sets the profiler which counts the instructions executed, or null to stop profiling. <br>
+	 * While profiling the recompiler isn't used.
+	 * @param profiler the profiler
+	 */
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Returns the profiler, or null if not profiling.
+	 * @return the profiler
+	 */
+	public Profiler getProfiler() {
+		return profiler;
+	}
 
-		//clock counts down at 60 hz
-		timer.schedule(task, 0, Math.round(1000.0 / 60.0));
+	/**
+	 * Sets the writer which traces every instruction executed, or null to stop tracing. <br>
+	 * While tracing the recompiler and profiler aren't used. The caller is responsible for closing the writer.
+	 * @param tracer the trace writer
+	 */
+	public void setTracer(TraceWriter tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Returns the trace writer, or null if not tracing.
+	 * @return the trace writer
+	 */
+	public TraceWriter getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Executes the given number of instructions, using the trace writer or profiler if there is one, or else the 
+	 * recompiler if it is enabled. <br>
+	 * The result is the same as calling <code>tick()</code> that many times, except that this stops early if the 
+	 * program is waiting for a key (FX0A), as the rest of the budget would only repeat the wait. 
+	 * Likewise idle loops, such as polling the delay timer, are skipped over once found (see <code>skipIdleLoop()</code>).
+	 * 
+	 * @param budget the number of instructions to execute
+	 * @return the number of instructions executed
+	 * @throws EmulatorException
+	 */
+	public int execute(int budget) throws EmulatorException {
+		if (clock != null) countClockFrames();
+
+		//we pick how to run once per call, so there is nothing extra to check each instruction
+		if (tracer != null) return tracer.execute(this, budget);
+		if (profiler != null) return profiler.execute(this, budget);
+		if (recompiler != null) return recompiler.execute(budget);
+
+		for (int i = 0; i < budget; i++) {
+			tick();
+
+			if (yielded) {
+				yielded = false;
+				if (waitingForKey) return i + 1;
+				i += skipIdleLoop(budget - i - 1);
+			}
+		}
+		return budget;
 	}
 
 	/**
 	 * Loads the program into memory and reinitialises variables. <br>
 	 * The program cannot be null, and cannot have length greater than 3584 bytes (4096 - 512).
+	 * The memory and instruction cache are copied from the image of the program (see <code>MemoryImage</code>), 
+	 * sharing its pages, so loading a program which was loaded recently, by this emulator or another, is cheap.
 	 * @param program the program
 	 * @throws IllegalArgumentException if program is more than 3584 bytes
 	 */
@@ -100,25 +322,163 @@ public class Chip8 implements KeyController {
 		if (program.length > 3584) throw new IllegalArgumentException("program cannot be longer than 3584 bytes");
 
 		//reinitialise our arrays to 0/false
-		for (int i = 0; i < pixels.length; i++) 
-			Arrays.fill(pixels[i], false);
-		Arrays.fill(keys, false);
+		Arrays.fill(pixels, 0L);
+		keys = 0;
+		freshKeys = 0;
+		waitingForKey = false;
+		yielded = false;
 		Arrays.fill(stack, 0);
 		Arrays.fill(register, 0);
-		Arrays.fill(memory, 0);
 
 		//reinitialise our single variables
-		drawFlag 	= false;
+		resetDrawFlag();
 		PC 			= 512;
+		instructions = 0;
+		idleInstructions = 0;
+		frames 		= 0;
+		random 		= seed;
 		SP 			= 0;
 		I 			= 0;
 		delayTimer 	= 0;
 		soundTimer 	= 0;
 
-		//load in our font-set (in case the last program overwrote it)
-		for (int i = 0; i < font.length; i++) 		memory[i] 		= font[i] & 0xFF;
-		//load in the main program
-		for (int i = 0; i < program.length; i++) 	memory[i + 512] = program[i] & 0xFF;
+		//share the font-set and program in the image, and take its pre-decoded instruction cache
+		image = MemoryImage.of(program);
+		System.arraycopy(image.pages, 0, pages, 0, MemoryImage.PAGES);
+		ownedPages = 0;
+		Arrays.fill(kinds, (byte) Decoder.UNDECODED);
+		System.arraycopy(image.kinds, 512, kinds, 512, image.end - 512);
+		System.arraycopy(image.argX, 512, argX, 512, image.end - 512);
+		System.arraycopy(image.argY, 512, argY, 512, image.end - 512);
+		System.arraycopy(image.argImm, 512, argImm, 512, image.end - 512);
+
+		Arrays.fill(idleLoops, IDLE_UNCHECKED);
+		idleLoop = -1;
+		if (recompiler != null) recompiler.clear();
+
+		Logger.log(Logger.INFO, Logger.PROGRAM_LOADED, program.length, 0);
+	}
+
+	/**
+	 * Writes the complete state of the emulator to the buffer, starting at its position. <br>
+	 * The state is <code>STATE_SIZE</code> bytes, little-endian, and can be restored with <code>loadState()</code>.
+	 * The buffers byte order is set to little-endian.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @throws java.nio.BufferOverflowException if there are fewer than <code>STATE_SIZE</code> bytes remaining
+	 */
+	public void saveState(ByteBuffer buffer) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.putInt(STATE_MAGIC);
+		buffer.putShort(STATE_VERSION);
+		if (buffer.remaining() < MAX_MEMORY) throw new BufferOverflowException();
+		for (int p = 0; p < MemoryImage.PAGES; p++) buffer.put(pages[p]);
+		for (int i = 0; i < MAX_REGISTERS; i++) 	buffer.put((byte) register[i]);
+		buffer.putShort((short) I);
+		buffer.putShort((short) PC);
+		buffer.put((byte) SP);
+		for (int i = 0; i < MAX_STACK; i++) 		buffer.putShort((short) stack[i]);
+		buffer.put((byte) delayTimer);
+		buffer.put((byte) soundTimer);
+
+		buffer.putShort((short) keys);
+
+		for (int i = 0; i < HEIGHT; i++) 			buffer.putLong(pixels[i]);
+		buffer.putLong(instructions);
+		buffer.putLong(frames);
+		buffer.putLong(random);
+	}
+
+	/**
+	 * Returns the complete state of the emulator as a new byte array. See <code>saveState(ByteBuffer)</code>.
+	 * @return the state
+	 */
+	public byte[] saveState() {
+		byte[] state = new byte[STATE_SIZE];
+		saveState(ByteBuffer.wrap(state));
+		return state;
+	}
+
+	/**
+	 * Restores the emulator to a state written by <code>saveState()</code>, reading from the buffers position. <br>
+	 * Nothing is allocated, other than the first time a page of memory becomes our own, so this can be called as
+	 * often as needed.
+	 * Afterwards the whole screen is marked as needing a redraw. The buffers byte order is set to little-endian.
+	 * 
+	 * @param buffer the buffer to read from
+	 * @throws IllegalArgumentException if the buffer doesn't hold a save state of this version, or it is corrupt
+	 */
+	public void loadState(ByteBuffer buffer) {
+		if (buffer.remaining() < STATE_SIZE) throw new IllegalArgumentException("Save state is too short");
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (buffer.getInt() != STATE_MAGIC) throw new IllegalArgumentException("Not a save state");
+		short version = buffer.getShort();
+		if (version != STATE_VERSION) throw new IllegalArgumentException("Unsupported save state version: " + version);
+		checkState(buffer);
+
+		//pages holding what the image does are shared with it again, the rest are our own
+		ownedPages = 0;
+		for (int p = 0; p < MemoryImage.PAGES; p++) {
+			byte[] page = ownPage(p);
+			buffer.get(page);
+
+			if (Arrays.equals(page, image.pages[p])) {
+				pages[p] = image.pages[p];
+			} else {
+				pages[p] = page;
+				ownedPages |= 1 << p;
+			}
+		}
+		for (int i = 0; i < MAX_REGISTERS; i++) 	register[i] = buffer.get() & 0xFF;
+		I 	= buffer.getShort() & 0xFFFF;
+		PC 	= buffer.getShort() & 0xFFFF;
+		SP 	= buffer.get() & 0xFF;
+		for (int i = 0; i < MAX_STACK; i++) 		stack[i] = buffer.getShort() & 0xFFFF;
+		delayTimer = buffer.get() & 0xFF;
+		soundTimer = buffer.get() & 0xFF;
+
+		keys = buffer.getShort() & 0xFFFF;
+		freshKeys = 0;
+		waitingForKey = false;
+		yielded = false;
+
+		for (int i = 0; i < HEIGHT; i++) 			pixels[i] = buffer.getLong();
+		instructions = buffer.getLong();
+		frames = buffer.getLong();
+		random = buffer.getLong();
+
+		//the memory has changed underneath the instruction cache
+		Arrays.fill(kinds, (byte) Decoder.UNDECODED);
+		Arrays.fill(idleLoops, IDLE_UNCHECKED);
+		idleLoop = -1;
+		if (recompiler != null) recompiler.clear();
+
+		//and the whole screen needs redrawing
+		drawFlag = true;
+
+		Logger.log(Logger.DEBUG, Logger.STATE_LOADED, PC, instructions);
+	}
+
+	/**
+	 * Checks the PC, SP and stack of the state at the buffers position (just after the version) are in range, 
+	 * so a corrupt or foreign file is rejected before anything is changed, rather than failing later on a CALL or RET.
+	 * 
+	 * @param buffer the state, which is left where it was
+	 * @throws IllegalArgumentException if a value is out of range
+	 */
+	private static void checkState(ByteBuffer buffer) {
+		int at = buffer.position() + MAX_MEMORY + MAX_REGISTERS + 2;
+		int pc = buffer.getShort(at) & 0xFFFF;
+		int sp = buffer.get(at + 2) & 0xFF;
+
+		if (pc >= MAX_MEMORY) throw new IllegalArgumentException("Corrupt save state: PC = " + pc);
+		if (sp > MAX_STACK) throw new IllegalArgumentException("Corrupt save state: SP = " + sp);
+		for (int i = 0; i < sp; i++) {
+			int address = buffer.getShort(at + 3 + i * 2) & 0xFFFF;
+			if (address >= MAX_MEMORY) throw new IllegalArgumentException("Corrupt save state: stack[" + i + "] = " + address);
+		}
 	}
 
 	/**
@@ -131,172 +491,303 @@ public class Chip8 implements KeyController {
 		if (PC + 1 >= MAX_MEMORY || PC < 0) 
 			throw new MemoryOutOfBoundsException("Memory-out-of-bounds reading opcode at PC = " + PC);
 
-		int hi = memory[PC] & 0xFF;
-		int low = memory[PC + 1] & 0xFF;
-		int opcode = (hi << 8) | low;
-		PC += 2;
-
-		//reset the drawflag
-		drawFlag = false;
+		//use the cached decoding of this address, decoding it first if needed
+		int kind = kinds[PC];
+		if (kind == Decoder.UNDECODED) kind = decode(PC);
 
-		//we will extract the common elements of the opcode
+		//the operands were extracted when decoding
 		//0xy0 for x/ y
-		//00nn for nn
-		//0nnn for nnn
-		int x = hi & 0xF;
-		int y = (low & 0xF0) >> 4;
-		int n = low & 0xF;
-		int nn = low;
-		int nnn = (x << 8) | low;
-
-		switch (hi >> 4) {	//switch over most significant bit of opcode
-		case 0x0:
-			switch (low) {
-			case 0xE0:	// 00E0, clear screen
-				clearScreen();		
-				break;
-			case 0xEE:	// 00E0, return from subroutine
-				if (SP - 1 < 0) throw new StackUnderflowException();
-				PC = stack[--SP];	
-				break;
-			default: invalidOpcode(opcode);
-			}
+		//nnn, nn, or n (depending on the instruction) for imm
+		int x = argX[PC];
+		int y = argY[PC];
+		int imm = argImm[PC];
+		PC += 2;
+
+		switch (kind) {
+		case Decoder.CLS:		// 00E0, clear screen
+			clearScreen();		
 			break;
-		case 0x1:	// 1NNN, jump to address NNN
-			PC = nnn;
+		case Decoder.RET:		// 00EE, return from subroutine
+			if (SP - 1 < 0) throw new StackUnderflowException();
+			PC = stack[--SP];	
 			break;
-		case 0x2: 	// 2NNN, call subroutine at NNN
+		case Decoder.JP:		// 1NNN, jump to address NNN
+			//a jump back may close an idle loop, for execute() to skip
+			if (imm < PC) checkIdleLoop(PC - 2);
+			PC = imm;
+			break;
+		case Decoder.CALL: 		// 2NNN, call subroutine at NNN
 			if (SP >= 16) throw new StackOverflowException();
 			stack[SP++] = PC; 
-			PC = nnn;					
+			PC = imm;					
 			break;
-		case 0x3: 	// 3XNN, skip next instruction if VX equals NN
-			if (register[x] == nn) 
+		case Decoder.SE_VX_NN: 	// 3XNN, skip next instruction if VX equals NN
+			if (register[x] == imm) 
 				PC += 2;
 			break;
-		case 0x4: 	// 4XNN, skip next instruction if VX doesn't equal NN
-			if (register[x] != nn) 
+		case Decoder.SNE_VX_NN: // 4XNN, skip next instruction if VX doesn't equal NN
+			if (register[x] != imm) 
 				PC += 2;
 			break;
-		case 0x5: 	// 5XY0, skip next instruction if VX equals VY
+		case Decoder.SE_VX_VY: 	// 5XY0, skip next instruction if VX equals VY
 			if (register[x] == register[y]) 
 				PC += 2;
 			break;
-		case 0x6: 	// 6XNN, sets VX to NN
-			register[x] = nn;
+		case Decoder.LD_VX_NN: 	// 6XNN, sets VX to NN
+			register[x] = imm;
 			break;
-		case 0x7: 	// 7XNN, adds NN to VX
-			register[x] = (register[x] + nn) & 0xFF;
+		case Decoder.ADD_VX_NN: // 7XNN, adds NN to VX
+			register[x] = (register[x] + imm) & 0xFF;
 			break;
-		case 0x8: 
-			switch(low & 0xF) {
-			case 0x0: 	// 8XY0, sets VX to VY
-				register[x] = register[y];
-				break;
-			case 0x1: 	// 8XY1, sets VX to VX or VY
-				register[x] |= register[y];
-				break;
-			case 0x2:	// 8XY2, sets VX to VX and VY 
-				register[x] &= register[y];
-				break;
-			case 0x3: 	// 8XY3, sets VK to VK xor VY
-				register[x] = (register[x] ^ register[y]) & 0xFF;
-				break;
-			case 0x4:	// 8XY4, adds VY to VX. VF set to 1 if carry, 0 otherwise
-				register[x] += register[y];
-				register[15] = register[x] > 0xFF ? 1 : 0;
-				register[x] &= 0xFF;
-				break;
-			case 0x5: 	// 8XY5, subtracts VY from VX. VF set to 0 if borrow, 0 otherwise
-				register[15] = register[y] > register[x] ? 0 : 1;
-				register[x] -= register[y];
-				register[x] &= 0xFF;
-				break;
-			case 0x6: 	// 8XY6, shifts VX right by one. VF set to LSB of VX before shift
-				register[15] = register[x] & 0x1;
-				register[x] = (register[x] >> 1) & 0xFF;
-				break;
-			case 0x7: 	// 8XY7, sets VX to VY minus VX. VF set to 0 if borrow, 0 otherwise
-				register[15] = register[x] > register[y] ? 0 : 1;
-				register[x] = (register[y] - register[x]) & 0xFF;
-				break;
-			case 0xE: 	// 8XYE, shifts VX left by one. VF set to MSB of VX before shift
-				register[15] = (register[x] >> 7);
-				register[x] = (register[x] << 1) & 0xFF;
-				break;
-			default: invalidOpcode(opcode);
-			}
+		case Decoder.LD_VX_VY: 	// 8XY0, sets VX to VY
+			register[x] = register[y];
+			break;
+		case Decoder.OR: 		// 8XY1, sets VX to VX or VY
+			register[x] |= register[y];
+			break;
+		case Decoder.AND:		// 8XY2, sets VX to VX and VY 
+			register[x] &= register[y];
+			break;
+		case Decoder.XOR: 		// 8XY3, sets VK to VK xor VY
+			register[x] = (register[x] ^ register[y]) & 0xFF;
+			break;
+		case Decoder.ADD_VX_VY:	// 8XY4, adds VY to VX. VF set to 1 if carry, 0 otherwise
+			register[x] += register[y];
+			register[15] = register[x] > 0xFF ? 1 : 0;
+			register[x] &= 0xFF;
+			break;
+		case Decoder.SUB: 		// 8XY5, subtracts VY from VX. VF set to 0 if borrow, 0 otherwise
+			register[15] = register[y] > register[x] ? 0 : 1;
+			register[x] -= register[y];
+			register[x] &= 0xFF;
+			break;
+		case Decoder.SHR: 		// 8XY6, shifts VX right by one. VF set to LSB of VX before shift
+			register[15] = register[x] & 0x1;
+			register[x] = (register[x] >> 1) & 0xFF;
 			break;
-		case 0x9: 	// 9XY0, skip next instruction if VX doesn't equal VY
+		case Decoder.SUBN: 		// 8XY7, sets VX to VY minus VX. VF set to 0 if borrow, 0 otherwise
+			register[15] = register[x] > register[y] ? 0 : 1;
+			register[x] = (register[y] - register[x]) & 0xFF;
+			break;
+		case Decoder.SHL: 		// 8XYE, shifts VX left by one. VF set to MSB of VX before shift
+			register[15] = (register[x] >> 7);
+			register[x] = (register[x] << 1) & 0xFF;
+			break;
+		case Decoder.SNE_VX_VY: // 9XY0, skip next instruction if VX doesn't equal VY
 			if (register[x] != register[y]) 
 				PC += 2;
 			break;
-		case 0xA:	// ANNN, sets I to NNN 
-			I = nnn;
+		case Decoder.LD_I:		// ANNN, sets I to NNN 
+			I = imm;
 			break;
-		case 0xB:	// BNNN, jumps to address NNN plus V0 
-			PC = (nnn + register[0]) & 0xFFFF;
+		case Decoder.JP_V0:		// BNNN, jumps to address NNN plus V0 
+			PC = (imm + register[0]) & 0xFFFF;
 			break;
-		case 0xC:	// CXNN, sets VX to a random number in range 0 - 0xFF inclusive, and'd with NN 
-			register[x] = ((int) (Math.random() * 0xFF)) & nn;
+		case Decoder.RND:		// CXNN, sets VX to a random number in range 0 - 0xFF inclusive, and'd with NN 
+			register[x] = nextRandom() & imm;
 			break;
-		case 0xD:	// DXYN, does a draw operation (see draw method for details) 
-			draw(register[x], register[y], n);
+		case Decoder.DRW:		// DXYN, does a draw operation (see draw method for details) 
+			draw(register[x], register[y], imm);
 			break;
-		case 0xE: 
-			switch (low) {
-			case 0x9E:	// EX9E, skips next instruction if key stored in VX is pressed
-				if (keys[register[x]]) 
-					PC += 2; 	
-				break;
-			case 0xA1: 	// EXA1, skips next instruction if key stored in VX is not pressed
-				if (!keys[register[x]]) 
-					PC += 2;
-				break;
-			default: invalidOpcode(opcode);
-			}
+		case Decoder.SKP:		// EX9E, skips next instruction if key stored in VX is pressed
+			if (isKeyDown(register[x])) 
+				PC += 2; 	
 			break;
-		case 0xF: 
-			switch (low) {
-			case 0x07: 	// FX07, sets VX to the value of the delay timer
-				register[x] = delayTimer & 0xFF;
-				break;
-			case 0x0A:	// FX0A, a key is awaited, then stored in VX 
-				awaitKeyPress(x);
-				break;
-			case 0x15: 	// FX15, sets the delay timer to VX
-				delayTimer = register[x];
-				break;
-			case 0x18: 	// FX18, sets the sound timer to VX
-				soundTimer = register[x];
-				break;
-			case 0x1E:	// FX1E, adds VX to I (undocumented feature, VF set to 1 if carry, 0 otherwise
-				register[15] = (I + register[x]) > 0xFFF ? 1 : 0;
-				I = (I + register[x]) & 0xFFFF;	
-				break;
-			case 0x29: 	// FX29, sets I to the location of character in VX (as defined in font-set)
-				I = register[x] * 5;
-				break;
-			case 0x33: 	// FX33, stores binary-coded decimal representation of VX in I, I + 1, and I + 2
-				memory[I] = register[x] / 100;
-				memory[I + 1] = (register[x] / 10) % 10;
-				memory[I + 2] = (register[x] % 100) % 10;
-				break;
-			case 0x55:	// FX55, stores V0 to VX in memory, starting at I, (with undocumented feature I = I + X + 1)
-				for (int i = 0; i <= x; i++)
-					memory[I + i] = register[i];
-				I = (I + x + 1) & 0xFFFF;
-				break;
-			case 0x65:	// FX65, fills V0 to VX with values in memory starting at I, (with undocumented feature I = I + X + 1)
-				for (int i = 0; i <= x; i++)
-					register[i] = memory[I + i];
-				I = (I + x + 1) & 0xFFFF;
-				break;
-			default: invalidOpcode(opcode);
-			}
+		case Decoder.SKNP: 		// EXA1, skips next instruction if key stored in VX is not pressed
+			if (!isKeyDown(register[x])) 
+				PC += 2;
+			break;
+		case Decoder.LD_VX_DT: 	// FX07, sets VX to the value of the delay timer
+			register[x] = delayTimer & 0xFF;
+			break;
+		case Decoder.LD_VX_K:	// FX0A, a key is awaited, then stored in VX 
+			awaitKeyPress(x);
+			break;
+		case Decoder.LD_DT_VX: 	// FX15, sets the delay timer to VX
+			delayTimer = register[x];
+			break;
+		case Decoder.LD_ST_VX: 	// FX18, sets the sound timer to VX
+			soundTimer = register[x];
 			break;
-		default: invalidOpcode(opcode);
+		case Decoder.ADD_I_VX:	// FX1E, adds VX to I (undocumented feature, VF set to 1 if carry, 0 otherwise
+			register[15] = (I + register[x]) > 0xFFF ? 1 : 0;
+			I = (I + register[x]) & 0xFFFF;	
+			break;
+		case Decoder.LD_F_VX: 	// FX29, sets I to the location of character in VX (as defined in font-set)
+			I = register[x] * 5;
+			break;
+		case Decoder.LD_B_VX: 	// FX33, stores binary-coded decimal representation of VX in I, I + 1, and I + 2
+			storeBCD(x);
+			break;
+		case Decoder.LD_I_VX:	// FX55, stores V0 to VX in memory, starting at I, (with undocumented feature I = I + X + 1)
+			storeRegisters(x);
+			break;
+		case Decoder.LD_VX_I:	// FX65, fills V0 to VX with values in memory starting at I, (with undocumented feature I = I + X + 1)
+			loadRegisters(x);
+			break;
+		default: invalidOpcode((read(PC - 2) << 8) | read(PC - 1));
+		}
+
+		instructions++;
+	}
+
+	/**
+	 * Decodes the instruction at the given address into the instruction cache, returning its kind.
+	 * 
+	 * @param address the address of the instruction
+	 * @return the kind of the instruction
+	 */
+	int decode(int address) {
+		return decode((read(address) << 8) | read(address + 1), address, kinds, argX, argY, argImm);
+	}
+
+	/**
+	 * Decodes the opcode into the given instruction cache, at the given address, returning its kind.
+	 * 
+	 * @param opcode the opcode
+	 * @param address the address of the instruction
+	 * @param kinds the kinds of the cache
+	 * @param argX the X operands of the cache
+	 * @param argY the Y operands of the cache
+	 * @param argImm the immediate operands of the cache
+	 * @return the kind of the instruction
+	 */
+	static int decode(int opcode, int address, byte[] kinds, byte[] argX, byte[] argY, short[] argImm) {
+		int kind = Decoder.decode(opcode);
+
+		argX[address] 	= (byte) ((opcode >> 8) & 0xF);
+		argY[address] 	= (byte) ((opcode >> 4) & 0xF);
+		argImm[address] = (short) Decoder.immediate(kind, opcode);
+		kinds[address] 	= (byte) kind;
+
+		return kind;
+	}
+
+	/**
+	 * Returns the byte of memory at the given address.
+	 * 
+	 * @param address the address
+	 * @return the byte, 0 - 255
+	 * @throws ArrayIndexOutOfBoundsException if the address is outside memory
+	 */
+	int read(int address) {
+		return pages[address >> MemoryImage.PAGE_BITS][address & MemoryImage.PAGE_MASK] & 0xFF;
+	}
+
+	/**
+	 * Writes a byte of memory, first copying its page from the image if it isn't already our own. <br>
+	 * The instruction cache is left for the caller to invalidate.
+	 * 
+	 * @param address the address
+	 * @param value the byte
+	 * @throws ArrayIndexOutOfBoundsException if the address is outside memory
+	 */
+	private void store(int address, int value) {
+		int p = address >> MemoryImage.PAGE_BITS;
+		if (p < MemoryImage.PAGES && (ownedPages & (1 << p)) == 0) {
+			byte[] page = ownPage(p);
+			System.arraycopy(pages[p], 0, page, 0, MemoryImage.PAGE_SIZE);
+			pages[p] = page;
+			ownedPages |= 1 << p;
 		}
+		pages[p][address & MemoryImage.PAGE_MASK] = (byte) value;
+	}
+
+	/**
+	 * Returns the array we use for the given page when it is our own, creating it the first time.
+	 * @param p the page
+	 * @return the array
+	 */
+	private byte[] ownPage(int p) {
+		byte[] page = ownPages[p];
+		if (page == null) page = ownPages[p] = new byte[MemoryImage.PAGE_SIZE];
+		return page;
+	}
+
+	/**
+	 * Invalidates the cached decoding of any instruction which overlaps the memory from <code>start</code> to 
+	 * <code>end</code> inclusive. <br>
+	 * An instruction is 2 bytes wide, so this includes any instruction starting at <code>start - 1</code>.
+	 * 
+	 * @param start the first address written
+	 * @param end the last address written
+	 */
+	private void invalidate(int start, int end) {
+		Arrays.fill(kinds, Math.max(start - 1, 0), end + 1, (byte) Decoder.UNDECODED);
+		//any loop which includes what was written may have changed
+		Arrays.fill(idleLoops, Math.max(start - 1, 0), Math.min(end + MAX_IDLE_LOOP * 2, MAX_MEMORY), IDLE_UNCHECKED);
+		if (recompiler != null) recompiler.invalidate(start, end);
+	}
+
+	/**
+	 * Stores the binary-coded decimal representation of VX in I, I + 1, and I + 2.
+	 * @param x the register
+	 */
+	void storeBCD(int x) {
+		store(I, register[x] / 100);
+		store(I + 1, (register[x] / 10) % 10);
+		store(I + 2, (register[x] % 100) % 10);
+		invalidate(I, I + 2);
+	}
+
+	/**
+	 * Stores V0 to VX in memory starting at I, then sets I to I + X + 1.
+	 * @param x the last register to store
+	 */
+	void storeRegisters(int x) {
+		for (int i = 0; i <= x; i++)
+			store(I + i, register[i]);
+		invalidate(I, I + x);
+		I = (I + x + 1) & 0xFFFF;
+	}
+
+	/**
+	 * Fills V0 to VX with the values in memory starting at I, then sets I to I + X + 1.
+	 * @param x the last register to fill
+	 */
+	void loadRegisters(int x) {
+		for (int i = 0; i <= x; i++)
+			register[i] = read(I + i);
+		I = (I + x + 1) & 0xFFFF;
+	}
+
+	/**
+	 * Returns a random number in the range 0 - 0xFF inclusive. <br>
+	 * The numbers come from a SplitMix64 generator owned by this emulator, so a seeded emulator is deterministic.
+	 * @return the random number
+	 */
+	int nextRandom() {
+		long z = (random += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return (int) ((z ^ (z >>> 31)) >>> 56);
+	}
+
+	/**
+	 * Sets the seed of the random number generator used by CXNN, and restarts it from the seed. <br>
+	 * The generator is also restarted from the seed each time a program is loaded, so two emulators with the same
+	 * seed, program and input run identically. By default the seed is taken from the clock.
+	 * @param seed the seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		this.random = seed;
+	}
+
+	/**
+	 * Returns the seed of the random number generator.
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the number of frames run since the program was loaded, counted by calls to <code>tickTimers()</code>.
+	 * @return the frame count
+	 */
+	public long getFrameCount() {
+		return frames;
 	}
 
 	/**
@@ -310,35 +801,36 @@ public class Chip8 implements KeyController {
 	 * @param y start y coordinate
 	 * @param height the height of drawing
 	 */
-	private void draw(int x, int y, int height) {
+	void draw(int x, int y, int height) {
 		//first set flag to off. It will later be set if a pixel is flipped from on to off
 		register[15] = 0;
 
+		//a sprite is nearly always within one page, so we only look the page up again when crossing into the next
+		byte[] page = null;
 		for (int j = 0; j < height; j++) {
-			int dat = memory[j + I];
+			int address = j + I;
+			if (page == null || (address & MemoryImage.PAGE_MASK) == 0) page = pages[address >> MemoryImage.PAGE_BITS];
 
-			for (int i = 0; i < 8; i++) {
-				//if the bit is 0, we aren't changing this value
-				if ((dat & (0x80 >> i)) == 0) continue;
+			int dat = page[address & MemoryImage.PAGE_MASK] & 0xFF;
+			int ry = j + y;
 
-				// NOTE: not sure if meant to skip out-of-bounds pixels or modulo them
-				// for the time being, I am ignoring them, as all games seem to function using this mechanism
+			// NOTE: not sure if meant to skip out-of-bounds pixels or modulo them
+			// for the time being, I am ignoring them, as all games seem to function using this mechanism
 
-				int rx = i + x;
-				int ry = j + y;
+			// ignore them. Pixels past the right edge are shifted off the end of the row
+			if (x >= WIDTH || ry >= HEIGHT) continue;
 
-				// ignore them. 
-				if (rx >= WIDTH || ry >= HEIGHT) continue;
+			// modulo version. Causes weird visual disturbances on the Blitz game
+			//long row = Long.rotateRight((long) dat << 56, x % 64);
+			//ry %= 32; 
 
-				// modulo version. Causes weird visual disturbances on the Blitz game
-				//rx %= 64;
-				//ry %= 32; 
+			//move the sprite byte to the top of the row, then across to x
+			long row = ((long) dat << 56) >>> x;
 
-				//if the pixel was on, it means we are now unsetting it, and we must set the carry flag
-				if (pixels[rx][ry]) register[15] = 1;
-				//flip the pixel
-				pixels[rx][ry] ^= true;
-			}
+			//if any pixel was on, it means we are now unsetting it, and we must set the carry flag
+			if ((pixels[ry] & row) != 0) register[15] = 1;
+			//flip the pixels
+			pixels[ry] ^= row;
 		}
 
 		//set draw flag to show we need to redraw
@@ -346,20 +838,120 @@ public class Chip8 implements KeyController {
 	}
 
 	/**
-	 * Clears the screen. Sets all elements in the boolean pixel array to false.
+	 * Clears the screen. Sets every row of the pixel data to 0.
 	 */
-	private void clearScreen() {
-		//iterate over pixel array setting to false
-		for (int i = 0; i < pixels.length; i++) {
-			for (int j = 0; j < pixels[i].length; j++) {
-				pixels[i][j] = false;
-			}
-		}
+	void clearScreen() {
+		Arrays.fill(pixels, 0L);
 
 		//set draw flag to show we need to redraw
 		drawFlag = true;
 	}
 
+	/**
+	 * Called when the jump at the given address goes backwards. If it closes a loop which could be idle, and the loop
+	 * is due to be checked, the loop is left for <code>execute()</code> to check with <code>skipIdleLoop()</code>.
+	 * 
+	 * @param jp the address of the jump
+	 */
+	private void checkIdleLoop(int jp) {
+		int state = idleLoops[jp];
+		if (state == IDLE_UNCHECKED) state = idleLoops[jp] = closesIdleLoop(jp) ? IDLE_CHECK : IDLE_NEVER;
+
+		if (state == IDLE_CHECK) {
+			idleLoop = jp;
+			yielded = true;
+		} else if (state > IDLE_CHECK) {
+			idleLoops[jp]--;
+		}
+	}
+
+	/**
+	 * Returns if the jump at the given address closes a loop which could be idle. <br>
+	 * That is a short loop back, with nothing in it but instructions which only change registers and I, and only 
+	 * read those, memory, the keys and the delay timer. Within a frame none of those change unless the loop changes 
+	 * them, so if going round the loop once changes nothing, it will change nothing until the next frame.
+	 * 
+	 * @param jp the address of the jump
+	 * @return true if the loop could be idle
+	 */
+	boolean closesIdleLoop(int jp) {
+		int start = argImm[jp];
+		if (start > jp || jp - start >= MAX_IDLE_LOOP * 2 || ((jp - start) & 1) != 0) return false;
+
+		for (int a = start; a < jp; a += 2) {
+			int kind = kinds[a];
+			if (kind == Decoder.UNDECODED) kind = decode(a);
+
+			switch (kind) {
+			case Decoder.SE_VX_NN: case Decoder.SNE_VX_NN: case Decoder.SE_VX_VY: case Decoder.SNE_VX_VY:
+			case Decoder.LD_VX_NN: case Decoder.ADD_VX_NN: case Decoder.LD_VX_VY: 
+			case Decoder.OR: case Decoder.AND: case Decoder.XOR: case Decoder.ADD_VX_VY: 
+			case Decoder.SUB: case Decoder.SHR: case Decoder.SUBN: case Decoder.SHL:
+			case Decoder.LD_I: case Decoder.ADD_I_VX: case Decoder.LD_F_VX: case Decoder.LD_VX_I:
+			case Decoder.SKP: case Decoder.SKNP: case Decoder.LD_VX_DT:
+				break;
+			default:
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks the loop closed by the jump just executed, skipping it if it is idle. Called by <code>execute()</code>.
+	 * <p>
+	 * The loop is run once more. If that left the registers and I as they were, the loop will do exactly the same 
+	 * every time round until the next frame, when the timers or keys may change. So as many whole times round the 
+	 * loop as fit in the budget are skipped, and counted as executed. The result is exactly as if they had run. <br>
+	 * The first time round in a frame may pick up a new delay timer value, so if that changed anything the loop 
+	 * is run a second time before giving up.
+	 * 
+	 * @param budget the number of instructions left in the budget
+	 * @return the number of instructions executed or skipped
+	 * @throws EmulatorException
+	 */
+	int skipIdleLoop(int budget) throws EmulatorException {
+		int jp = idleLoop;
+		idleLoop = -1;
+		//the profiler and tracer don't check loops, so this may have been left from before them
+		if (jp == -1 || PC != argImm[jp]) return 0;
+
+		int start = argImm[jp];
+		int length = (jp - start) / 2 + 1;
+
+		int done = 0;
+		for (int tries = 0; tries < 2; tries++) {
+			//we need room to go round the whole loop, otherwise we check again next time
+			if (budget - done < length) return done;
+
+			System.arraycopy(register, 0, idleRegisters, 0, MAX_REGISTERS);
+			int oldI = I;
+
+			//we go round until we are back at the start, stopping if we leave the loop (only a skip over the jump can)
+			int round = 0;
+			do {
+				tick();
+				round++;
+			} while (PC > start && PC <= jp);
+			done += round;
+			idleLoop = -1;
+			yielded = false;
+
+			if (PC != start) break;
+
+			if (I == oldI && Arrays.equals(register, idleRegisters)) {
+				int skipped = (budget - done) / round * round;
+				instructions += skipped;
+				idleInstructions += skipped;
+				return done + skipped;
+			}
+		}
+
+		idleLoops[jp] = IDLE_BACKOFF;
+		return done;
+	}
+
 	/**
 	 * Awaits a key press. If any key is pressed, we have already 'awaited' and we can continue. <br>
 	 * If no key is pressed, we decrease the program counter by 2 to retry the command, thus 'waiting'.
@@ -370,16 +962,50 @@ public class Chip8 implements KeyController {
 	private void awaitKeyPress(int destReg) throws RegisterOutOfBoundsException {
 		if (destReg < 0 || destReg > 15) throw new RegisterOutOfBoundsException("Cannot await on register: " + destReg);
 
-		for (int i = 0; i < keys.length; i++) {
-			//if a key is pressed, the await succeeded, and we set it and return
-			if (keys[i]) {
-				register[destReg] = 1 << i;
-				return;
-			}
+		//if a key is pressed, the await succeeded, and we set the lowest and return
+		if (keys != 0) {
+			int i = Integer.numberOfTrailingZeros(keys);
+			if ((freshKeys & (1 << i)) != 0) keyConsumed(i);
+			register[destReg] = 1 << i;
+			waitingForKey = false;
+			return;
 		}
 
 		//if we had no key pressed, we decrement our pc which causes the instruction to repeat again
 		PC -= 2;
+		waitingForKey = true;
+		yielded = true;
+	}
+
+	/**
+	 * Returns if the given key is held, for EX9E and EXA1. <br>
+	 * If the key was pressed since an instruction last looked at it, the latency of the press is measured.
+	 * 
+	 * @param key the key
+	 * @return true if held
+	 * @throws InvalidKeyException if key is not between 0 and 15 inclusive
+	 */
+	private boolean isKeyDown(int key) throws InvalidKeyException {
+		if (key > 15) throw new InvalidKeyException("Invalid key checked: " + key);
+
+		int bit = 1 << key;
+		if ((freshKeys & bit) != 0) keyConsumed(key);
+		return (keys & bit) != 0;
+	}
+
+	/**
+	 * Measures the time from the given key being pressed to an instruction looking at it.
+	 * @param key the key
+	 */
+	private void keyConsumed(int key) {
+		freshKeys &= ~(1 << key);
+
+		long latency = System.nanoTime() - pressTimes[key];
+		latencyCount++;
+		latencyTotal += latency;
+		latencyMax = Math.max(latencyMax, latency);
+		latencyLast = latency;
+		Logger.log(Logger.DEBUG, Logger.KEY_CONSUMED, key, latency);
 	}
 
 	/**
@@ -388,13 +1014,39 @@ public class Chip8 implements KeyController {
 	 * @throws UnknownOpcodeException the exception to be thrown
 	 */
 	private void invalidOpcode(int opcode) throws UnknownOpcodeException {
+		Logger.log(Logger.ERROR, Logger.UNKNOWN_OPCODE, opcode, PC - 2);
 		throw new UnknownOpcodeException("Invalid opcode: " + Integer.toString(opcode, 16).toUpperCase() + " at PC = " + (PC - 2));
 	}
 
 	@Override
 	public void keyInteracted(int i, boolean pressed) throws InvalidKeyException {
+		keyInteracted(i, pressed, 0);
+	}
+
+	/**
+	 * Signals that the given key was either pressed or released, at the given time. <br>
+	 * The time of a press is used to measure the latency until an instruction (EX9E, EXA1 or FX0A) looks at the key.
+	 * 
+	 * @param i the key
+	 * @param pressed true if pressed, false if released
+	 * @param time when the key was pressed, from <code>System.nanoTime()</code>, or 0 if not known
+	 * @throws InvalidKeyException if not in range 0-15 inclusive
+	 */
+	public void keyInteracted(int i, boolean pressed, long time) throws InvalidKeyException {
 		if (i < 0 || i > 15) throw new InvalidKeyException("Invalid key " + (pressed ? "pushed: " : "released: ") + i);
-		keys[i] = pressed;
+
+		int bit = 1 << i;
+		if (pressed) {
+			keys |= bit;
+			//only presses with a known time are measured
+			if (time != 0) {
+				freshKeys |= bit;
+				pressTimes[i] = time;
+			}
+		} else {
+			keys &= ~bit;
+			freshKeys &= ~bit;
+		}
 	}
 
 	/**
@@ -430,13 +1082,25 @@ public class Chip8 implements KeyController {
 	}
 
 	/**
-	 * Returns the chip8 memory. It is a 4096 byte array (stored as ints).
+	 * Returns a copy of the chip8 memory, all 4096 bytes.
 	 * @return the memory
 	 */
-	public int[] getMemory() {
+	public byte[] getMemory() {
+		byte[] memory = new byte[MAX_MEMORY];
+		for (int p = 0; p < MemoryImage.PAGES; p++) 
+			System.arraycopy(pages[p], 0, memory, p << MemoryImage.PAGE_BITS, MemoryImage.PAGE_SIZE);
 		return memory;
 	}
 
+	/**
+	 * Returns the number of pages of memory this emulator holds itself, having written to them. <br>
+	 * The rest are shared with every other emulator running the same program.
+	 * @return the number of pages
+	 */
+	public int getOwnedPageCount() {
+		return Integer.bitCount(ownedPages);
+	}
+
 	/**
 	 * Returns the I register.
 	 * @return the I register
@@ -445,6 +1109,14 @@ public class Chip8 implements KeyController {
 		return I;
 	}
 
+	/**
+	 * Returns the number of instructions successfully executed since the program was loaded.
+	 * @return the instruction count
+	 */
+	public long getInstructionCount() {
+		return instructions;
+	}
+
 	/**
 	 * Returns the delay timer.
 	 * @return the delay timer
@@ -462,7 +1134,7 @@ public class Chip8 implements KeyController {
 	}
 
 	/**
-	 * Returns the draw flag, which indicates if the emulator needs to be redrawn this cycle. <br>
+	 * Returns the draw flag, which indicates if the screen has changed since the flag was last reset. <br>
 	 * <b>Note:</b> this method call does not reset the draw flag.
 	 * @return the draw flag
 	 */
@@ -470,45 +1142,82 @@ public class Chip8 implements KeyController {
 		return drawFlag;
 	}
 
+	/**
+	 * Resets the draw flag. This should be called once the screen has been drawn.
+	 */
+	public void resetDrawFlag() {
+		drawFlag = false;
+	}
+
 	/**
 	 * Returns the pixel data for the emulator.<br>
-	 * It is a 64 * 32 boolean array. <br>
-	 * A true indicates that pixel is set. False indicates it is not.
+	 * It is an array of 32 longs, one for each row. <br>
+	 * The most significant bit of a row is the leftmost pixel, so pixel (x, y) is set if 
+	 * <code>(pixels[y] &lt;&lt; x) &lt; 0</code>.
 	 * @return the pixel data
 	 */
-	public boolean[][] getPixelData() {
+	public long[] getPixelData() {
 		return pixels;
 	}
 
 	/**
-	 * Returns the currently held keys. <br>
-	 * The returned array is of length 16 (to represent the hex keypad).
+	 * Returns the currently held keys, a bit per key (key 0 being the least significant bit).
 	 * @return the keys
 	 */
-	public boolean[] getKeys() {
+	public int getKeys() {
 		return keys;
 	}
 
-	/** 
-	 * This is the font-set for the emulator of characters 0-9 A-F (hex charas).<br>
-	 * Each 5 shorts is a different character, designated by the adjacent comment.
-	 */
-	private short[] font = { 
-			0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
-			0x20, 0x60, 0x20, 0x20, 0x70, // 1
-			0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
-			0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
-			0x90, 0x90, 0xF0, 0x10, 0x10, // 4
-			0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
-			0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
-			0xF0, 0x10, 0x20, 0x40, 0x40, // 7
-			0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
-			0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
-			0xF0, 0x90, 0xF0, 0x90, 0x90, // A
-			0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
-			0xF0, 0x80, 0x80, 0x80, 0xF0, // C
-			0xE0, 0x90, 0x90, 0x90, 0xE0, // D
-			0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
-			0xF0, 0x80, 0xF0, 0x80, 0x80  // F
-	};
+	/**
+	 * Returns the number of key presses whose latency has been measured since the emulator was created.
+	 * @return the number of key presses
+	 */
+	public long getInputLatencyCount() {
+		return latencyCount;
+	}
+
+	/**
+	 * Returns the latency of the last measured key press, from when it was pressed to when an instruction 
+	 * looked at it.
+	 * @return the latency in nanoseconds, or 0 if none have been measured
+	 */
+	public long getLastInputLatency() {
+		return latencyLast;
+	}
+
+	/**
+	 * Returns the mean latency of the measured key presses.
+	 * @return the latency in nanoseconds, or 0 if none have been measured
+	 */
+	public long getAverageInputLatency() {
+		return latencyCount == 0 ? 0 : latencyTotal / latencyCount;
+	}
+
+	/**
+	 * Returns the greatest latency of the measured key presses.
+	 * @return the latency in nanoseconds, or 0 if none have been measured
+	 */
+	public long getMaxInputLatency() {
+		return latencyMax;
+	}
+
+	/**
+	 * Returns if the program is waiting for a key to be pressed (FX0A). <br>
+	 * Until one is, running the emulator only repeats the wait, so whoever drives it can stop until a key is pressed.
+	 * The timers still count down while waiting, though.
+	 * @return true if waiting for a key
+	 */
+	public boolean isWaitingForKey() {
+		return waitingForKey;
+	}
+
+	/**
+	 * Returns the number of instructions since the program was loaded which were skipped over as they were in an 
+	 * idle loop. <br>
+	 * These are included in the instruction count.
+	 * @return the number of instructions skipped
+	 */
+	public long getIdleInstructionCount() {
+		return idleInstructions;
+	}
 }
\ No newline at end of file
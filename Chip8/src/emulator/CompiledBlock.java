@@ -0,0 +1,17 @@
+package emulator;
+
+/**
+ * A basic block of Chip8 instructions which has been compiled to JVM bytecode by the <code>Recompiler</code>.
+ *
+ * @author Troy Shaw
+ */
+interface CompiledBlock {
+
+	/**
+	 * Runs every instruction in the block on the given emulator. <br>
+	 * Afterwards the PC is at the next instruction to execute.
+	 * 
+	 * @param chip8 the emulator
+	 */
+	public void run(Chip8 chip8);
+}
@@ -0,0 +1,216 @@
+package emulator;
+
+/**
+ * Decodes 16-bit opcodes into a small integer 'kind', one for each distinct Chip8 instruction.<br>
+ * The emulator uses the kinds to cache decoded instructions, so an instruction is only decoded once per address.
+ * <p>
+ * Kind 0 is reserved to mean 'not yet decoded'.
+ *
+ * @author Troy Shaw
+ */
+public final class Decoder {
+
+	/** Not yet decoded */
+	public static final int UNDECODED 	= 0;
+	/** Any opcode that isn't a valid instruction */
+	public static final int INVALID 	= 1;
+
+	public static final int CLS 		= 2;	// 00E0
+	public static final int RET 		= 3;	// 00EE
+	public static final int JP 			= 4;	// 1NNN
+	public static final int CALL 		= 5;	// 2NNN
+	public static final int SE_VX_NN 	= 6;	// 3XNN
+	public static final int SNE_VX_NN 	= 7;	// 4XNN
+	public static final int SE_VX_VY 	= 8;	// 5XY0
+	public static final int LD_VX_NN 	= 9;	// 6XNN
+	public static final int ADD_VX_NN 	= 10;	// 7XNN
+	public static final int LD_VX_VY 	= 11;	// 8XY0
+	public static final int OR 			= 12;	// 8XY1
+	public static final int AND 		= 13;	// 8XY2
+	public static final int XOR 		= 14;	// 8XY3
+	public static final int ADD_VX_VY 	= 15;	// 8XY4
+	public static final int SUB 		= 16;	// 8XY5
+	public static final int SHR 		= 17;	// 8XY6
+	public static final int SUBN 		= 18;	// 8XY7
+	public static final int SHL 		= 19;	// 8XYE
+	public static final int SNE_VX_VY 	= 20;	// 9XY0
+	public static final int LD_I 		= 21;	// ANNN
+	public static final int JP_V0 		= 22;	// BNNN
+	public static final int RND 		= 23;	// CXNN
+	public static final int DRW 		= 24;	// DXYN
+	public static final int SKP 		= 25;	// EX9E
+	public static final int SKNP 		= 26;	// EXA1
+	public static final int LD_VX_DT 	= 27;	// FX07
+	public static final int LD_VX_K 	= 28;	// FX0A
+	public static final int LD_DT_VX 	= 29;	// FX15
+	public static final int LD_ST_VX 	= 30;	// FX18
+	public static final int ADD_I_VX 	= 31;	// FX1E
+	public static final int LD_F_VX 	= 32;	// FX29
+	public static final int LD_B_VX 	= 33;	// FX33
+	public static final int LD_I_VX 	= 34;	// FX55
+	public static final int LD_VX_I 	= 35;	// FX65
+
+	/** The number of kinds, including <code>UNDECODED</code> and <code>INVALID</code> */
+	public static final int KINDS 		= 36;
+
+	private Decoder() {
+		//stop instantiation
+	}
+
+	/**
+	 * Returns the kind of the given opcode, or <code>INVALID</code> if it isn't a valid instruction.
+	 * 
+	 * @param opcode the 16-bit opcode
+	 * @return the kind
+	 */
+	public static int decode(int opcode) {
+		int low = opcode & 0xFF;
+
+		switch (opcode >> 12) {	//switch over most significant nibble of opcode
+		case 0x0:
+			switch (low) {
+			case 0xE0: return CLS;
+			case 0xEE: return RET;
+			default: return INVALID;
+			}
+		case 0x1: return JP;
+		case 0x2: return CALL;
+		case 0x3: return SE_VX_NN;
+		case 0x4: return SNE_VX_NN;
+		case 0x5: return SE_VX_VY;
+		case 0x6: return LD_VX_NN;
+		case 0x7: return ADD_VX_NN;
+		case 0x8:
+			switch (low & 0xF) {
+			case 0x0: return LD_VX_VY;
+			case 0x1: return OR;
+			case 0x2: return AND;
+			case 0x3: return XOR;
+			case 0x4: return ADD_VX_VY;
+			case 0x5: return SUB;
+			case 0x6: return SHR;
+			case 0x7: return SUBN;
+			case 0xE: return SHL;
+			default: return INVALID;
+			}
+		case 0x9: return SNE_VX_VY;
+		case 0xA: return LD_I;
+		case 0xB: return JP_V0;
+		case 0xC: return RND;
+		case 0xD: return DRW;
+		case 0xE:
+			switch (low) {
+			case 0x9E: return SKP;
+			case 0xA1: return SKNP;
+			default: return INVALID;
+			}
+		case 0xF:
+			switch (low) {
+			case 0x07: return LD_VX_DT;
+			case 0x0A: return LD_VX_K;
+			case 0x15: return LD_DT_VX;
+			case 0x18: return LD_ST_VX;
+			case 0x1E: return ADD_I_VX;
+			case 0x29: return LD_F_VX;
+			case 0x33: return LD_B_VX;
+			case 0x55: return LD_I_VX;
+			case 0x65: return LD_VX_I;
+			default: return INVALID;
+			}
+		default: return INVALID;
+		}
+	}
+
+	/**
+	 * Returns the immediate operand used by the given kind of instruction: NNN for jumps, calls and ANNN, 
+	 * N for DXYN, NN for instructions which take a byte, and 0 otherwise.
+	 * 
+	 * @param kind the kind of the instruction
+	 * @param opcode the 16-bit opcode
+	 * @return the immediate operand
+	 */
+	public static int immediate(int kind, int opcode) {
+		switch (kind) {
+		case JP: case CALL: case LD_I: case JP_V0:
+			return opcode & 0xFFF;
+		case SE_VX_NN: case SNE_VX_NN: case LD_VX_NN: case ADD_VX_NN: case RND:
+			return opcode & 0xFF;
+		case DRW:
+			return opcode & 0xF;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the mnemonic of the given kind, such as <code>LD</code> or <code>DRW</code>, or <code>???</code> 
+	 * for invalid and undecoded instructions.
+	 * 
+	 * @param kind the kind
+	 * @return the mnemonic
+	 */
+	public static String mnemonic(int kind) {
+		return MNEMONICS[kind];
+	}
+
+	private static final String[] MNEMONICS = {
+		"???", "???", "CLS", "RET", "JP", "CALL", "SE", "SNE", "SE", "LD", "ADD", "LD", "OR", "AND", "XOR", 
+		"ADD", "SUB", "SHR", "SUBN", "SHL", "SNE", "LD", "JP", "RND", "DRW", "SKP", "SKNP", "LD", "LD", "LD", 
+		"LD", "ADD", "LD", "LD", "LD", "LD"
+	};
+
+	/**
+	 * Returns the assembly of the given opcode, in the common Chip8 syntax (for example <code>LD V3, #1F</code>).
+	 * 
+	 * @param opcode the 16-bit opcode
+	 * @return the assembly
+	 */
+	public static String disassemble(int opcode) {
+		int kind = decode(opcode);
+		String x = "V" + Integer.toHexString((opcode >> 8) & 0xF).toUpperCase();
+		String y = "V" + Integer.toHexString((opcode >> 4) & 0xF).toUpperCase();
+		String nnn = String.format("#%03X", opcode & 0xFFF);
+		String nn = String.format("#%02X", opcode & 0xFF);
+		String m = mnemonic(kind);
+
+		switch (kind) {
+		case CLS: case RET:
+			return m;
+		case JP: case CALL:
+			return m + " " + nnn;
+		case SE_VX_NN: case SNE_VX_NN: case LD_VX_NN: case ADD_VX_NN: case RND:
+			return m + " " + x + ", " + nn;
+		case SE_VX_VY: case LD_VX_VY: case OR: case AND: case XOR: case ADD_VX_VY: case SUB: case SHR: 
+		case SUBN: case SHL: case SNE_VX_VY:
+			return m + " " + x + ", " + y;
+		case LD_I:
+			return m + " I, " + nnn;
+		case JP_V0:
+			return m + " V0, " + nnn;
+		case DRW:
+			return m + " " + x + ", " + y + ", " + (opcode & 0xF);
+		case SKP: case SKNP:
+			return m + " " + x;
+		case LD_VX_DT:
+			return m + " " + x + ", DT";
+		case LD_VX_K:
+			return m + " " + x + ", K";
+		case LD_DT_VX:
+			return m + " DT, " + x;
+		case LD_ST_VX:
+			return m + " ST, " + x;
+		case ADD_I_VX:
+			return m + " I, " + x;
+		case LD_F_VX:
+			return m + " F, " + x;
+		case LD_B_VX:
+			return m + " B, " + x;
+		case LD_I_VX:
+			return m + " [I], " + x;
+		case LD_VX_I:
+			return m + " " + x + ", [I]";
+		default:
+			return String.format("DW #%04X", opcode);
+		}
+	}
+}
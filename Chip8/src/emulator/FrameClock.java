@@ -0,0 +1,215 @@
+package emulator;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A clock which counts frames (at 60hz) and ticks every client once a frame, all from one thread. <br>
+ * Any number of emulators (or anything else needing a 60hz tick) can share a clock, so hosting thousands of them
+ * doesn't need thousands of threads.
+ * <p>
+ * Emulators only need to know how many frames have passed, so they are attached rather than added as clients 
+ * (see <code>Chip8.setClock()</code>). They read the frame count when they next run, so the clock does no work 
+ * for them at all, however many there are.
+ * <p>
+ * Clients are kept in a hashed timer wheel with <code>SLOTS</code> slots. Each client is put in a slot by its hash, 
+ * and the thread visits one slot after another, so each client is ticked once a frame, and the work of many clients 
+ * is spread out over the frame rather than all done at once. Like the scheduler, ticks are kept on a fixed grid so
+ * they don't drift, and if the clock falls too far behind it starts a new grid rather than catching up.
+ * <p>
+ * The thread is started when the first client is added (or user attached), and ends once the last is removed, 
+ * so an unused clock holds no thread.
+ *
+ * @author Troy Shaw
+ */
+public final class FrameClock {
+
+	/** The number of slots in the wheel */
+	public static final int SLOTS = 16;
+
+	private static final long SLOT_NANOS = 1000000000L / Scheduler.FRAME_RATE / SLOTS;
+	//if we are this far behind we give up trying to catch up
+	private static final long MAX_LAG_NANOS = SLOT_NANOS * SLOTS * 5;
+
+	private static final FrameClock SHARED = new FrameClock();
+
+	/**
+	 * Something ticked by the clock.
+	 */
+	public interface Client {
+
+		/**
+		 * Called once a frame, on the clock's thread. <br>
+		 * This holds up every other client, so it should return quickly, handing any real work to another thread.
+		 */
+		void frame();
+	}
+
+	//the clients in each slot. Written rarely and read every frame, so copied on write
+	private final List<Client>[] slots;
+	//the number of clients, and of users reading the frame count
+	private int clients, users;
+	//the number of frames counted. Only written by the clock thread
+	private volatile long frame;
+	//the thread running the clock, or null when there are no clients
+	private volatile Thread thread;
+
+	/**
+	 * Creates a new clock, with no clients. <br>
+	 * Most users should share the one returned by <code>shared()</code>.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public FrameClock() {
+		slots = new List[SLOTS];
+		for (int i = 0; i < SLOTS; i++) slots[i] = new CopyOnWriteArrayList<Client>();
+	}
+
+	/**
+	 * Returns the clock shared by every emulator that doesn't have its own.
+	 * @return the shared clock
+	 */
+	public static FrameClock shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Adds a client, which is ticked from the next time its slot comes round. Starts the thread if needed. <br>
+	 * A client can only be added once.
+	 *
+	 * @param client the client
+	 */
+	public synchronized void add(Client client) {
+		if (client == null) throw new NullPointerException();
+
+		List<Client> slot = slots[slotOf(client)];
+		if (slot.contains(client)) throw new IllegalArgumentException("client was already added");
+		slot.add(client);
+		clients++;
+		start();
+	}
+
+	/**
+	 * Removes a client. The thread ends once there are no clients or users left. <br>
+	 * The client may still be ticked once more, if its slot is being ticked as it is removed.
+	 *
+	 * @param client the client
+	 * @return true if the client was removed, false if it wasn't added
+	 */
+	public synchronized boolean remove(Client client) {
+		if (client == null || !slots[slotOf(client)].remove(client)) return false;
+
+		clients--;
+		stopIfUnused();
+		return true;
+	}
+
+	/**
+	 * Adds a user of the frame count, which keeps the clock running until it detaches. Starts the thread if needed.
+	 */
+	public synchronized void attach() {
+		users++;
+		start();
+	}
+
+	/**
+	 * Removes a user of the frame count. The thread ends once there are no clients or users left.
+	 */
+	public synchronized void detach() {
+		if (users == 0) throw new IllegalStateException("no users are attached");
+
+		users--;
+		stopIfUnused();
+	}
+
+	/**
+	 * Returns the number of frames counted, since the clock was created. <br>
+	 * The count only goes up while the clock has clients or users.
+	 * @return the frame count
+	 */
+	public long getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Returns the number of clients.
+	 * @return the number of clients
+	 */
+	public synchronized int getClientCount() {
+		return clients;
+	}
+
+	/**
+	 * Returns the number of users attached.
+	 * @return the number of users
+	 */
+	public synchronized int getUserCount() {
+		return users;
+	}
+
+	//starts the thread if it isn't running. Must hold the lock
+	private void start() {
+		if (thread == null) {
+			final Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					tick(Thread.currentThread());
+				}
+			}, "Chip8 frame clock");
+			t.setDaemon(true);
+			thread = t;
+			t.start();
+		}
+	}
+
+	//ends the thread if there is nobody left to tick. Must hold the lock
+	private void stopIfUnused() {
+		if (clients == 0 && users == 0 && thread != null) {
+			Thread t = thread;
+			thread = null;
+			LockSupport.unpark(t);
+		}
+	}
+
+	//spreads the clients evenly over the slots, however their hash codes are distributed
+	private static int slotOf(Client client) {
+		return (System.identityHashCode(client) * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(SLOTS));
+	}
+
+	/**
+	 * The clock thread's loop, visiting a slot each <code>1/SLOTS</code> of a frame until this is no longer the clock's thread.
+	 * @param self the thread running this
+	 */
+	private void tick(Thread self) {
+		long deadline = System.nanoTime();
+		int slot = 0;
+
+		while (thread == self) {
+			slot = (slot + 1) % SLOTS;
+			deadline += SLOT_NANOS;
+
+			//we only wake for slots with clients in them, and for the first slot, where the frame is counted
+			List<Client> clients = slots[slot];
+			if (slot != 0 && clients.isEmpty()) continue;
+
+			long remaining;
+			while (thread == self && (remaining = deadline - System.nanoTime()) > 0)
+				LockSupport.parkNanos(this, remaining);
+			//we may have been stopped, and another thread started, while parked
+			if (thread != self) break;
+			if (System.nanoTime() - deadline > MAX_LAG_NANOS) deadline = System.nanoTime();
+
+			if (slot == 0) frame++;
+
+			for (Client c : clients) {
+				try {
+					c.frame();
+				} catch (RuntimeException e) {
+					//one bad client mustn't stop the others
+					remove(c);
+					Logger.log(Logger.ERROR, Logger.CLIENT_FAILED, getClientCount(), 0);
+				}
+			}
+		}
+	}
+}
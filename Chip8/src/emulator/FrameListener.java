@@ -0,0 +1,27 @@
+package emulator;
+
+import emulator.exception.EmulatorException;
+
+/**
+ * Listens to the frames run by a <code>Scheduler</code>.
+ *
+ * @author Troy Shaw
+ */
+public interface FrameListener {
+
+	/**
+	 * Signals that a frame has been run, that is a frames worth of instructions has been executed and the 
+	 * timers have been ticked. <br>
+	 * This is called on the scheduler thread.
+	 * 
+	 * @param chip8 the emulator
+	 */
+	public void frameCompleted(Chip8 chip8);
+
+	/**
+	 * Signals that the emulator threw an exception. The scheduler stops after this is called.
+	 * 
+	 * @param e the exception
+	 */
+	public void emulatorFailed(EmulatorException e);
+}
@@ -0,0 +1,258 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import emulator.exception.EmulatorException;
+
+/**
+ * A recording of the input given to a game, which can be played back to run the game exactly as it was played.
+ * <p>
+ * A movie starts when the program is loaded. It holds the seed of the random number generator, the instructions
+ * run each frame, and every key press and release stamped with the frame it happened before. As key presses
+ * are only applied between frames (see <code>Scheduler.keyInteracted()</code>), playing the movie back gives the
+ * same result every time, at any speed.
+ * <p>
+ * The file format is little-endian: the magic number, a short version, the seed (8), instructions per frame (4),
+ * the CRC32 of the program (4), the length in frames (8) and the number of events (4). Then each event is the
+ * frame (4), key (1) and 1 if pressed or 0 if released (1).
+ *
+ * @author Troy Shaw
+ */
+public final class InputMovie {
+
+	/** The magic number a movie file starts with ("C8MV") */
+	public static final int MAGIC = 0x564D3843;
+	/** The version of the movie format */
+	public static final short VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 + 2 + 8 + 4 + 4 + 8 + 4;
+	private static final int EVENT_SIZE = 6;
+
+	private final long seed;
+	private final int instructionsPerFrame;
+	private final int programCrc;
+	private long length;
+
+	//the events, in the order they happened. Keys are stored with the top bit set if pressed
+	private int[] eventFrames = new int[64];
+	private byte[] eventKeys = new byte[64];
+	private int events;
+
+	/**
+	 * Creates an empty movie of the given program.
+	 *
+	 * @param seed the seed the emulator's random number generator uses
+	 * @param instructionsPerFrame the instructions run each frame
+	 * @param program the program
+	 */
+	public InputMovie(long seed, int instructionsPerFrame, byte[] program) {
+		this(seed, instructionsPerFrame, crc(program));
+	}
+
+	private InputMovie(long seed, int instructionsPerFrame, int programCrc) {
+		if (instructionsPerFrame <= 0) throw new IllegalArgumentException("instructions per frame must be positive");
+
+		this.seed = seed;
+		this.instructionsPerFrame = instructionsPerFrame;
+		this.programCrc = programCrc;
+	}
+
+	/**
+	 * Adds a key press or release, made before the given frame ran. <br>
+	 * Frames must not go backwards; use <code>truncate()</code> first after rewinding.
+	 *
+	 * @param frame the number of frames run before the key changed
+	 * @param key the key
+	 * @param pressed true if pressed, false if released
+	 */
+	public void record(long frame, int key, boolean pressed) {
+		if (frame > Integer.MAX_VALUE) throw new IllegalArgumentException("movie is too long");
+		if (events > 0 && frame < eventFrames[events - 1]) throw new IllegalArgumentException("frames must not go backwards");
+
+		if (events == eventFrames.length) {
+			eventFrames = Arrays.copyOf(eventFrames, events * 2);
+			eventKeys = Arrays.copyOf(eventKeys, events * 2);
+		}
+
+		eventFrames[events] = (int) frame;
+		eventKeys[events] = (byte) (key | (pressed ? 0x80 : 0));
+		events++;
+
+		length = Math.max(length, frame);
+	}
+
+	/**
+	 * Drops every event from the given frame on, and shortens the movie to the given length. Used after rewinding.
+	 *
+	 * @param frame the frame to cut the movie at
+	 */
+	public void truncate(long frame) {
+		while (events > 0 && eventFrames[events - 1] >= frame) events--;
+		length = Math.min(length, frame);
+	}
+
+	/**
+	 * Sets the number of frames the movie runs for. It must be at least as long as the last event.
+	 *
+	 * @param length the length in frames
+	 */
+	public void setLength(long length) {
+		if (events > 0 && length < eventFrames[events - 1]) throw new IllegalArgumentException("movie is shorter than its events");
+		this.length = length;
+	}
+
+	/**
+	 * Returns the number of frames the movie runs for.
+	 * @return the length in frames
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the seed of the random number generator.
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the number of instructions run each frame.
+	 * @return the instructions per frame
+	 */
+	public int getInstructionsPerFrame() {
+		return instructionsPerFrame;
+	}
+
+	/**
+	 * Returns the number of key presses and releases.
+	 * @return the number of events
+	 */
+	public int getEventCount() {
+		return events;
+	}
+
+	/**
+	 * Returns if this movie was recorded with the given program.
+	 * @param program the program
+	 * @return true if the program matches
+	 */
+	public boolean isOf(byte[] program) {
+		return crc(program) == programCrc;
+	}
+
+	/**
+	 * Plays the movie back on the given emulator as fast as possible. <br>
+	 * The emulator is seeded and the program loaded, then the movie's key presses are fed to it between frames.
+	 *
+	 * @param chip8 the emulator
+	 * @param program the program the movie was recorded with
+	 * @throws EmulatorException if the emulator throws one
+	 */
+	public void play(Chip8 chip8, byte[] program) throws EmulatorException {
+		if (!isOf(program)) throw new IllegalArgumentException("movie was recorded with a different program");
+
+		chip8.setSeed(seed);
+		chip8.loadProgram(program);
+
+		int e = 0;
+		for (long frame = 0; frame < length; frame++) {
+			for (; e < events && eventFrames[e] == frame; e++)
+				chip8.keyInteracted(eventKeys[e] & 0x7F, eventKeys[e] < 0);
+
+			chip8.execute(instructionsPerFrame);
+			chip8.tickTimers();
+		}
+	}
+
+	/**
+	 * Writes the movie to a file, replacing any existing one.
+	 *
+	 * @param file the file
+	 * @throws IOException if the file couldn't be written
+	 */
+	public void write(File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + events * EVENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putLong(seed);
+		buffer.putInt(instructionsPerFrame);
+		buffer.putInt(programCrc);
+		buffer.putLong(length);
+		buffer.putInt(events);
+
+		for (int i = 0; i < events; i++) {
+			buffer.putInt(eventFrames[i]);
+			buffer.put((byte) (eventKeys[i] & 0x7F));
+			buffer.put((byte) (eventKeys[i] < 0 ? 1 : 0));
+		}
+		buffer.flip();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads a movie from a file.
+	 *
+	 * @param file the file
+	 * @return the movie
+	 * @throws IOException if the file couldn't be read, or isn't a movie of this version
+	 */
+	public static InputMovie read(File file) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) throw new IOException("Not a movie: " + file);
+
+			buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			buffer.flip();
+		}
+
+		if (buffer.getInt() != MAGIC) throw new IOException("Not a movie: " + file);
+		short version = buffer.getShort();
+		if (version != VERSION) throw new IOException("Unsupported movie version: " + version);
+
+		long seed = buffer.getLong();
+		int instructionsPerFrame = buffer.getInt();
+		int programCrc = buffer.getInt();
+		long length = buffer.getLong();
+		int events = buffer.getInt();
+		if (instructionsPerFrame <= 0 || events < 0 || buffer.remaining() < (long) events * EVENT_SIZE)
+			throw new IOException("Corrupt movie: " + file);
+
+		InputMovie movie = new InputMovie(seed, instructionsPerFrame, programCrc);
+		try {
+			for (int i = 0; i < events; i++) {
+				int frame = buffer.getInt();
+				int key = buffer.get();
+				boolean pressed = buffer.get() != 0;
+				if (key < 0 || key > 15) throw new IOException("Corrupt movie: " + file);
+
+				movie.record(frame, key, pressed);
+			}
+			movie.setLength(length);
+		} catch (IllegalArgumentException e) {
+			//events out of order, or longer than the movie
+			throw new IOException("Corrupt movie: " + file, e);
+		}
+
+		return movie;
+	}
+
+	private static int crc(byte[] program) {
+		CRC32 crc = new CRC32();
+		crc.update(program);
+		return (int) crc.getValue();
+	}
+}
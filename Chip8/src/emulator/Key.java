@@ -1,6 +1,7 @@
 package emulator;
 
 import java.awt.event.KeyEvent;
+import java.util.Arrays;
 
 /**
  * Enum for the different keys.<br>
@@ -27,6 +28,18 @@ public enum Key {
 	xF	(0xF, KeyEvent.VK_V);
 	
 	private final int code, position;
+
+	//the position of the key with each keycode, or -1 if there isn't one
+	private static final int[] POSITIONS;
+
+	static {
+		int max = 0;
+		for (Key k : values()) max = Math.max(max, k.code);
+
+		POSITIONS = new int[max + 1];
+		Arrays.fill(POSITIONS, -1);
+		for (Key k : values()) POSITIONS[k.code] = k.position;
+	}
 	
 	Key(int position, int code) {
 		this.position = position;
@@ -48,4 +61,15 @@ public enum Key {
 	public int getPosition() {
 		return position;
 	}
+
+	/**
+	 * Returns the position of the key with the given keycode. <br>
+	 * This is a lookup in a table, so it is cheap enough for every key event.
+	 * 
+	 * @param code the keycode
+	 * @return the position, or -1 if no key has that keycode
+	 */
+	public static int positionOf(int code) {
+		return code >= 0 && code < POSITIONS.length ? POSITIONS[code] : -1;
+	}
 }
\ No newline at end of file
@@ -1,13 +1,216 @@
 package emulator;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-public class Logger {
+/**
+ * A fixed size log of recent events, shared by every emulator. <br>
+ * Each event is a level, a code and two primitive arguments. Nothing is formatted or allocated when logging, so
+ * events can be logged from the tick path; the message is only built when the log is read.
+ * <p>
+ * The log is a ring of <code>CAPACITY</code> preallocated records. Logging is lock-free and safe from any number
+ * of threads: each event claims the next record with an atomic increment, and once full the oldest records are
+ * overwritten. Records are guarded by their sequence number (a seqlock), so a reader never sees a half written one.
+ * <p>
+ * Tools read the log with <code>drain()</code>, which hands over every event logged since the last drain.
+ *
+ * @author Troy Shaw
+ */
+public final class Logger {
 
-	public static List<String> log = new ArrayList<String>();
-	
-	public static void log(String message) {
-		log.add(message);
+	public static final int DEBUG 	= 0;
+	public static final int INFO 	= 1;
+	public static final int WARN 	= 2;
+	public static final int ERROR 	= 3;
+
+	private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+	/** A program was loaded. Arguments: length */
+	public static final int PROGRAM_LOADED 		= 0;
+	/** A save state was loaded. Arguments: PC, instruction count */
+	public static final int STATE_LOADED 		= 1;
+	/** An unknown opcode was executed. Arguments: opcode, PC */
+	public static final int UNKNOWN_OPCODE 		= 2;
+	/** The recompiler compiled a block. Arguments: address, instructions */
+	public static final int BLOCK_COMPILED 		= 3;
+	/** The recompiler threw away a block as its code was written to. Arguments: address, times invalidated */
+	public static final int BLOCK_INVALIDATED 	= 4;
+	/** The scheduler fell too far behind and skipped ahead. Arguments: nanoseconds behind */
+	public static final int FRAMES_DROPPED 		= 5;
+	/** An instruction looked at a newly pressed key. Arguments: key, nanoseconds since it was pressed */
+	public static final int KEY_CONSUMED 		= 6;
+	/** A frame clock client threw an exception, so was removed. Arguments: clients left */
+	public static final int CLIENT_FAILED 		= 7;
+	/** A hosted session threw an exception, so was closed. Arguments: sessions left */
+	public static final int SESSION_FAILED 		= 8;
+
+	private static final String[] FORMATS = {
+		"Loaded program of %d bytes",
+		"Loaded save state at PC #%03X after %d instructions",
+		"Unknown opcode #%04X at #%03X",
+		"Compiled block at #%03X of %d instructions",
+		"Invalidated block at #%03X (%d times)",
+		"Scheduler fell %d ns behind, skipping ahead",
+		"Key %X consumed %d ns after being pressed",
+		"Frame clock client failed and was removed, %d clients left",
+		"Hosted session failed and was closed, %d sessions left",
+	};
+
+	/** The number of events kept */
+	public static final int CAPACITY = 4096;
+	private static final int MASK = CAPACITY - 1;
+
+	//the sequence number of the event in each record, or -1 while it is being written
+	private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+	private static final long[] times = new long[CAPACITY];
+	private static final int[] events = new int[CAPACITY];
+	private static final long[] firstArgs = new long[CAPACITY];
+	private static final long[] secondArgs = new long[CAPACITY];
+
+	//the sequence number of the next event
+	private static final AtomicLong next = new AtomicLong();
+	//the sequence number of the next event to drain, and how many were overwritten before they could be
+	private static long drained;
+	private static long lost;
+
+	private static volatile int level = INFO;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) sequences.set(i, -1);
+	}
+
+	/**
+	 * Receives the events drained from the log.
+	 */
+	public interface Sink {
+
+		/**
+		 * Receives one event.
+		 *
+		 * @param sequence the number of the event, counting from 0
+		 * @param time the time it was logged, from <code>System.nanoTime()</code>
+		 * @param level the level
+		 * @param code the code
+		 * @param a the first argument
+		 * @param b the second argument
+		 */
+		void event(long sequence, long time, int level, int code, long a, long b);
+	}
+
+	private Logger() {
+		//stop instantiation
+	}
+
+	/**
+	 * Sets the lowest level that is logged. Events below it are ignored.
+	 * @param level the level
+	 */
+	public static void setLevel(int level) {
+		Logger.level = level;
+	}
+
+	/**
+	 * Returns the lowest level that is logged.
+	 * @return the level
+	 */
+	public static int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Logs an event, if its level is being logged.
+	 *
+	 * @param level the level
+	 * @param code the code, one of the event constants
+	 * @param a the first argument
+	 * @param b the second argument
+	 */
+	public static void log(int level, int code, long a, long b) {
+		if (level < Logger.level) return;
+
+		long sequence = next.getAndIncrement();
+		int i = (int) sequence & MASK;
+
+		//mark the record as being written before changing it, so readers know to skip it
+		sequences.set(i, -1);
+		VarHandle.storeStoreFence();
+
+		times[i] = System.nanoTime();
+		events[i] = (level << 16) | code;
+		firstArgs[i] = a;
+		secondArgs[i] = b;
+
+		sequences.set(i, sequence);
+	}
+
+	/**
+	 * Hands every event logged since the last drain to the sink, oldest first. <br>
+	 * Events which were overwritten before they could be drained are counted by <code>getLost()</code>.
+	 *
+	 * @param sink the sink
+	 * @return the number of events handed over
+	 */
+	public static synchronized int drain(Sink sink) {
+		long end = next.get();
+		long start = Math.max(drained, end - CAPACITY);
+		lost += start - drained;
+
+		int count = 0;
+		long sequence;
+		for (sequence = start; sequence < end; sequence++) {
+			int i = (int) sequence & MASK;
+
+			//an event still being written is left for the next drain
+			long published = sequences.get(i);
+			if (published == -1 || published < sequence) break;
+
+			//read the record, then check it wasn't overwritten while we read it
+			long time = times[i];
+			int event = events[i];
+			long a = firstArgs[i];
+			long b = secondArgs[i];
+			VarHandle.loadLoadFence();
+			if (published != sequence || sequences.get(i) != sequence) {
+				lost++;
+				continue;
+			}
+
+			sink.event(sequence, time, event >>> 16, event & 0xFFFF, a, b);
+			count++;
+		}
+
+		drained = sequence;
+		return count;
+	}
+
+	/**
+	 * Returns the number of events which were overwritten before they could be drained.
+	 * @return the number of lost events
+	 */
+	public static synchronized long getLost() {
+		return lost;
+	}
+
+	/**
+	 * Returns the message of an event.
+	 *
+	 * @param code the code
+	 * @param a the first argument
+	 * @param b the second argument
+	 * @return the message
+	 */
+	public static String format(int code, long a, long b) {
+		if (code < 0 || code >= FORMATS.length) return "Unknown event " + code + " (" + a + ", " + b + ")";
+		return String.format(FORMATS[code], a, b);
+	}
+
+	/**
+	 * Returns the name of a level.
+	 * @param level the level
+	 * @return the name
+	 */
+	public static String levelName(int level) {
+		return level >= 0 && level < LEVEL_NAMES.length ? LEVEL_NAMES[level] : Integer.toString(level);
 	}
 }
@@ -0,0 +1,136 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The memory of a freshly loaded program: the font, then the program at 512. <br>
+ * The memory is split into read-only pages, which every emulator running the program shares. An emulator copies
+ * a page before it first writes to it (see <code>Chip8.store()</code>), so however many emulators run a game, each
+ * only holds the few pages it has written. Pages of zeros and the font page are shared by every image.
+ * <p>
+ * An image also holds its program predecoded, so loading a program is a few array copies. The images of the
+ * <code>CACHE_SIZE</code> programs loaded most recently are kept, so loading a program again reuses its image.
+ *
+ * @author Troy Shaw
+ */
+final class MemoryImage {
+
+	/** The size of a page is 2 to the power of this */
+	static final int PAGE_BITS = 8;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	static final int PAGE_MASK = PAGE_SIZE - 1;
+	/** The number of pages in memory */
+	static final int PAGES = Chip8.MAX_MEMORY >> PAGE_BITS;
+
+	/** The number of images of recently loaded programs kept */
+	static final int CACHE_SIZE = 64;
+
+	/**
+	 * This is the font-set for the emulator of characters 0-9 A-F (hex charas).<br>
+	 * Each 5 shorts is a different character, designated by the adjacent comment.
+	 */
+	private static final short[] font = {
+			0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
+			0x20, 0x60, 0x20, 0x20, 0x70, // 1
+			0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
+			0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
+			0x90, 0x90, 0xF0, 0x10, 0x10, // 4
+			0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
+			0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
+			0xF0, 0x10, 0x20, 0x40, 0x40, // 7
+			0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
+			0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
+			0xF0, 0x90, 0xF0, 0x90, 0x90, // A
+			0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
+			0xF0, 0x80, 0x80, 0x80, 0xF0, // C
+			0xE0, 0x90, 0x90, 0x90, 0xE0, // D
+			0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
+			0xF0, 0x80, 0xF0, 0x80, 0x80  // F
+	};
+
+	private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+	private static final byte[] FONT_PAGE = new byte[PAGE_SIZE];
+
+	static {
+		for (int i = 0; i < font.length; i++) FONT_PAGE[i] = (byte) font[i];
+	}
+
+	/** The image of an emulator with no program loaded, with every byte 0 */
+	static final MemoryImage BLANK = new MemoryImage(null);
+
+	//the images by program, least recently used first
+	private static final Map<ByteBuffer, MemoryImage> cache = new LinkedHashMap<ByteBuffer, MemoryImage>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, MemoryImage> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** The pages, which must never be written to */
+	final byte[][] pages = new byte[PAGES][];
+
+	/** The instruction cache after loading the program (see <code>Chip8.decode()</code>), undecoded outside the program */
+	final byte[] kinds = new byte[Chip8.MAX_MEMORY];
+	final byte[] argX = new byte[Chip8.MAX_MEMORY];
+	final byte[] argY = new byte[Chip8.MAX_MEMORY];
+	final short[] argImm = new short[Chip8.MAX_MEMORY];
+	/** The address after the end of the program */
+	final int end;
+
+	/**
+	 * Builds the image of a program, or of blank memory if the program is null.
+	 * @param program the program
+	 */
+	private MemoryImage(byte[] program) {
+		Arrays.fill(kinds, (byte) Decoder.UNDECODED);
+
+		if (program == null) {
+			Arrays.fill(pages, ZERO_PAGE);
+			end = 512;
+			return;
+		}
+		end = 512 + program.length;
+
+		byte[] memory = new byte[Chip8.MAX_MEMORY];
+		System.arraycopy(FONT_PAGE, 0, memory, 0, PAGE_SIZE);
+		System.arraycopy(program, 0, memory, 512, program.length);
+
+		for (int p = 0; p < PAGES; p++) {
+			int from = p << PAGE_BITS;
+			if (Arrays.equals(memory, from, from + PAGE_SIZE, ZERO_PAGE, 0, PAGE_SIZE)) pages[p] = ZERO_PAGE;
+			else if (Arrays.equals(memory, from, from + PAGE_SIZE, FONT_PAGE, 0, PAGE_SIZE)) pages[p] = FONT_PAGE;
+			else pages[p] = Arrays.copyOfRange(memory, from, from + PAGE_SIZE);
+		}
+
+		//pre-decode the program
+		for (int i = 512; i + 1 < 512 + program.length; i += 2)
+			Chip8.decode((memory[i] & 0xFF) << 8 | (memory[i + 1] & 0xFF), i, kinds, argX, argY, argImm);
+	}
+
+	/**
+	 * Returns the image of the given program, from the cache if it was loaded recently.
+	 *
+	 * @param program the program, at most 3584 bytes
+	 * @return the image
+	 */
+	static MemoryImage of(byte[] program) {
+		synchronized (cache) {
+			MemoryImage image = cache.get(ByteBuffer.wrap(program));
+			if (image != null) return image;
+		}
+
+		//built outside the lock, so another thread may build the same image, in which case we use theirs
+		byte[] copy = program.clone();
+		MemoryImage image = new MemoryImage(copy);
+
+		synchronized (cache) {
+			MemoryImage other = cache.putIfAbsent(ByteBuffer.wrap(copy), image);
+			return other != null ? other : image;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package emulator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+import emulator.exception.EmulatorException;
+
+/**
+ * Counts the instructions an emulator executes: how often each address is executed, how often each
+ * kind of instruction is executed, and how many sprite pixels are drawn.<br>
+ * Profiling is turned on by giving a profiler to <code>Chip8.setProfiler()</code>. The emulator only checks for a
+ * profiler once per call to <code>execute()</code>, so an emulator without one runs exactly as fast as before.
+ * <p>
+ * While profiling, instructions are always interpreted (never recompiled), so each one can be counted.
+ * The results can be written as CSV, or as a disassembly of the program annotated with the counts.
+ *
+ * @author Troy Shaw
+ */
+public final class Profiler {
+
+	/** The number of hottest addresses marked in the listing */
+	public static final int HOT_SPOTS = 10;
+
+	private final long[] addressCounts = new long[Chip8.MAX_MEMORY];
+	private final long[] kindCounts = new long[Decoder.KINDS];
+	private long pixelsDrawn;
+	private long instructions;
+
+	/**
+	 * Executes the given number of instructions on the emulator, counting each one.
+	 *
+	 * @param chip8 the emulator
+	 * @param budget the number of instructions to execute
+	 * @return the number of instructions executed
+	 * @throws EmulatorException
+	 */
+	int execute(Chip8 chip8, int budget) throws EmulatorException {
+		for (int i = 0; i < budget; i++) {
+			int pc = chip8.PC;
+
+			//an out of bounds PC is left for tick() to throw on
+			if (pc >= 0 && pc < Chip8.MAX_MEMORY - 1) {
+				int kind = chip8.kinds[pc];
+				if (kind == Decoder.UNDECODED) kind = chip8.decode(pc);
+
+				addressCounts[pc]++;
+				kindCounts[kind]++;
+
+				//count the pixels set in each row of the sprite
+				if (kind == Decoder.DRW) {
+					int height = chip8.argImm[pc];
+					for (int j = 0, a = chip8.I; j < height && a < Chip8.MAX_MEMORY; j++, a++)
+						pixelsDrawn += Integer.bitCount(chip8.read(a));
+				}
+			}
+
+			chip8.tick();
+			instructions++;
+			if (chip8.waitingForKey) return i + 1;
+		}
+
+		return budget;
+	}
+
+	/**
+	 * Clears all counts.
+	 */
+	public void reset() {
+		Arrays.fill(addressCounts, 0);
+		Arrays.fill(kindCounts, 0);
+		pixelsDrawn = 0;
+		instructions = 0;
+	}
+
+	/**
+	 * Returns the number of times the instruction at the given address was executed.
+	 * @param address the address
+	 * @return the count
+	 */
+	public long getCount(int address) {
+		return addressCounts[address];
+	}
+
+	/**
+	 * Returns the number of times instructions of the given kind were executed. See <code>Decoder</code>.
+	 * @param kind the kind
+	 * @return the count
+	 */
+	public long getKindCount(int kind) {
+		return kindCounts[kind];
+	}
+
+	/**
+	 * Returns the number of sprite pixels drawn (the set bits of every sprite row drawn).
+	 * @return the pixels drawn
+	 */
+	public long getPixelsDrawn() {
+		return pixelsDrawn;
+	}
+
+	/**
+	 * Returns the number of instructions executed while profiling.
+	 * @return the instruction count
+	 */
+	public long getInstructionCount() {
+		return instructions;
+	}
+
+	/**
+	 * Writes the counts as CSV. There is a row for each address executed, then a row for each kind of instruction
+	 * executed, then a row with the pixels drawn. The columns are: type, address or name, opcode, assembly, count, percent.
+	 *
+	 * @param memory the memory the program is in, to read the opcodes from
+	 * @param out the writer
+	 * @throws IOException if the writer throws one
+	 */
+	public void writeCsv(byte[] memory, Writer out) throws IOException {
+		out.write("type,address,opcode,assembly,count,percent\n");
+
+		for (int a = 0; a < addressCounts.length; a++) {
+			if (addressCounts[a] == 0) continue;
+
+			int opcode = opcode(memory, a);
+			out.write(String.format(Locale.ROOT, "address,#%03X,#%04X,\"%s\",%d,%s\n", a, opcode,
+					Decoder.disassemble(opcode), addressCounts[a], percent(addressCounts[a])));
+		}
+
+		for (int k = 0; k < kindCounts.length; k++) {
+			if (kindCounts[k] == 0) continue;
+
+			out.write(String.format(Locale.ROOT, "kind,%s,,%s,%d,%s\n", kindName(k), Decoder.mnemonic(k),
+					kindCounts[k], percent(kindCounts[k])));
+		}
+
+		out.write(String.format(Locale.ROOT, "pixels,,,,%d,\n", pixelsDrawn));
+		out.flush();
+	}
+
+	/**
+	 * Writes a disassembly of the program annotated with the count of each instruction. <br>
+	 * Every address from the start of the program up to the last one executed is listed, along with any other
+	 * address executed. The <code>HOT_SPOTS</code> hottest addresses are marked with their rank.
+	 *
+	 * @param memory the memory the program is in
+	 * @param out the writer
+	 * @throws IOException if the writer throws one
+	 */
+	public void writeListing(byte[] memory, Writer out) throws IOException {
+		int last = 0x200;
+		for (int a = 0; a < addressCounts.length; a++) if (addressCounts[a] != 0) last = Math.max(last, a);
+
+		//the rank of each hot address, 0 if it isn't hot
+		int[] ranks = new int[addressCounts.length];
+		Integer[] byCount = new Integer[addressCounts.length];
+		for (int a = 0; a < byCount.length; a++) byCount[a] = a;
+		Arrays.sort(byCount, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(addressCounts[b], addressCounts[a]);
+			}
+		});
+		for (int r = 0; r < HOT_SPOTS && addressCounts[byCount[r]] != 0; r++) ranks[byCount[r]] = r + 1;
+
+		out.write(String.format(Locale.ROOT, "; %d instructions, %d sprite pixels drawn\n", instructions, pixelsDrawn));
+		out.write(";      count  percent  hot   addr  opcode  assembly\n");
+
+		for (int a = 0; a < addressCounts.length - 1; a++) {
+			boolean listed = addressCounts[a] != 0 || (a >= 0x200 && a <= last && (a & 1) == 0);
+			if (!listed) continue;
+
+			int opcode = opcode(memory, a);
+			String hot = ranks[a] == 0 ? "" : "#" + ranks[a];
+			out.write(String.format(Locale.ROOT, "%12d  %7s  %-4s  %03X   %04X    %s\n", addressCounts[a], percent(addressCounts[a]),
+					hot, a, opcode, Decoder.disassemble(opcode)));
+		}
+
+		out.write("\n; instructions by kind\n");
+		for (int k = 0; k < kindCounts.length; k++) {
+			if (kindCounts[k] == 0) continue;
+			out.write(String.format(Locale.ROOT, "%12d  %7s  %s\n", kindCounts[k], percent(kindCounts[k]), kindName(k)));
+		}
+
+		out.flush();
+	}
+
+	private String percent(long count) {
+		return instructions == 0 ? "0.00" : String.format(Locale.ROOT, "%.2f", 100.0 * count / instructions);
+	}
+
+	private static int opcode(byte[] memory, int address) {
+		return ((memory[address] & 0xFF) << 8) | (memory[address + 1] & 0xFF);
+	}
+
+	//the names of the kinds, with the opcode pattern, as mnemonics alone are ambiguous
+	private static String kindName(int kind) {
+		return Decoder.mnemonic(kind) + " (" + KIND_PATTERNS[kind] + ")";
+	}
+
+	private static final String[] KIND_PATTERNS = {
+		"undecoded", "invalid", "00E0", "00EE", "1NNN", "2NNN", "3XNN", "4XNN", "5XY0", "6XNN", "7XNN",
+		"8XY0", "8XY1", "8XY2", "8XY3", "8XY4", "8XY5", "8XY6", "8XY7", "8XYE", "9XY0", "ANNN", "BNNN",
+		"CXNN", "DXYN", "EX9E", "EXA1", "FX07", "FX0A", "FX15", "FX18", "FX1E", "FX29", "FX33", "FX55", "FX65"
+	};
+}
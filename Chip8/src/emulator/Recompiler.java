@@ -0,0 +1,563 @@
+package emulator;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import emulator.exception.EmulatorException;
+
+/**
+ * A dynamic recompiler, which compiles frequently executed basic blocks of Chip8 instructions into JVM bytecode.
+ * <p>
+ * A block starts at any address that has been reached often enough, and ends at the first jump, skip,
+ * or memory store (the store may have changed the code that follows). Calls, returns, key instructions and
+ * invalid opcodes are never compiled, and are left to the interpreter. This means compiled code never throws an
+ * <code>EmulatorException</code>, so the interpreter handles all of the error reporting.
+ * <p>
+ * Each block is defined as a hidden class in this package, so it can access the emulators package-private state,
+ * and is cached by its start address. Blocks are thrown away when a store overlaps them.
+ *
+ * @author Troy Shaw
+ */
+final class Recompiler {
+
+	//the most instructions a single block can hold
+	private static final int MAX_BLOCK = 64;
+	//the number of times an address must be reached before we compile a block there
+	private static final int HOT_THRESHOLD = 16;
+	//the number of times a block can be invalidated before we stop compiling it (it's probably self-modifying)
+	private static final int MAX_INVALIDATIONS = 8;
+	//heat value for an address that should never be compiled again
+	private static final short NEVER = Short.MIN_VALUE;
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private static final String CHIP8 = "emulator/Chip8";
+	private static final String BLOCK = "emulator/CompiledBlock";
+
+	private final Chip8 chip8;
+
+	//compiled blocks and their lengths in instructions, indexed by start address
+	private final CompiledBlock[] blocks;
+	private final byte[] lengths;
+	//times each address has been reached without a block. -1 means a block can't start there
+	private final short[] heat;
+	//times the block at each address has been invalidated
+	private final byte[] invalidations;
+
+	/**
+	 * Constructs a new recompiler for the given emulator.
+	 *
+	 * @param chip8 the emulator
+	 */
+	Recompiler(Chip8 chip8) {
+		this.chip8 = chip8;
+
+		blocks = new CompiledBlock[Chip8.MAX_MEMORY];
+		lengths = new byte[Chip8.MAX_MEMORY];
+		heat = new short[Chip8.MAX_MEMORY];
+		invalidations = new byte[Chip8.MAX_MEMORY];
+	}
+
+	/**
+	 * Executes the given number of instructions, running compiled blocks where possible. <br>
+	 * A block is only run if it fits in what is left of the budget, otherwise the interpreter is used.
+	 * Like the interpreter, this stops early if the program is waiting for a key, and skips idle loops.
+	 *
+	 * @param budget the number of instructions to execute
+	 * @return the number of instructions executed
+	 * @throws EmulatorException from the interpreter
+	 */
+	int execute(int budget) throws EmulatorException {
+		int done = 0;
+
+		while (done < budget) {
+			int pc = chip8.PC;
+
+			if (pc >= 0 && pc < Chip8.MAX_MEMORY) {
+				CompiledBlock block = blocks[pc];
+				if (block == null && heat[pc] >= 0 && ++heat[pc] >= HOT_THRESHOLD) block = compile(pc);
+
+				//we read the length first, as a block ending in a store may invalidate itself
+				int length = lengths[pc];
+				if (block != null && length <= budget - done) {
+					block.run(chip8);
+					chip8.instructions += length;
+					done += length;
+					continue;
+				}
+			}
+
+			chip8.tick();
+			done++;
+
+			if (chip8.yielded) {
+				chip8.yielded = false;
+				if (chip8.waitingForKey) break;
+				done += chip8.skipIdleLoop(budget - done);
+			}
+		}
+
+		return done;
+	}
+
+	/**
+	 * Throws away every compiled block.
+	 */
+	void clear() {
+		Arrays.fill(blocks, null);
+		Arrays.fill(lengths, (byte) 0);
+		Arrays.fill(heat, (short) 0);
+		Arrays.fill(invalidations, (byte) 0);
+	}
+
+	/**
+	 * Throws away any block which overlaps the memory from <code>start</code> to <code>end</code> inclusive.
+	 *
+	 * @param start the first address written
+	 * @param end the last address written
+	 */
+	void invalidate(int start, int end) {
+		int first = Math.max(start - MAX_BLOCK * 2 + 1, 0);
+		int last = Math.min(end, Chip8.MAX_MEMORY - 1);
+
+		for (int a = first; a <= last; a++) {
+			if (blocks[a] != null && a + lengths[a] * 2 > start) {
+				blocks[a] = null;
+				lengths[a] = 0;
+				heat[a] = ++invalidations[a] >= MAX_INVALIDATIONS ? NEVER : 0;
+				Logger.log(Logger.DEBUG, Logger.BLOCK_INVALIDATED, a, invalidations[a]);
+			}
+		}
+
+		//an instruction which couldn't start a block before may be able to now
+		for (int a = Math.max(start - 1, 0); a <= last; a++)
+			if (heat[a] == -1) heat[a] = 0;
+	}
+
+	/**
+	 * Compiles the block starting at the given address, caching and returning it. <br>
+	 * If no block can start there, null is returned and the address is never tried again (until invalidated).
+	 *
+	 * @param start the start address
+	 * @return the block, or null
+	 */
+	private CompiledBlock compile(int start) {
+		int[] kinds = new int[MAX_BLOCK];
+		int length = 0;
+
+		for (int address = start; length < MAX_BLOCK && address + 1 < Chip8.MAX_MEMORY; address += 2) {
+			int kind = chip8.kinds[address];
+			if (kind == Decoder.UNDECODED) kind = chip8.decode(address);
+			if (!isCompilable(kind)) break;
+			//a jump closing a loop which could be idle is left to the interpreter, which checks for that
+			if (kind == Decoder.JP && chip8.closesIdleLoop(address)) break;
+
+			kinds[length++] = kind;
+			if (endsBlock(kind)) break;
+		}
+
+		if (length == 0) {
+			heat[start] = -1;
+			return null;
+		}
+
+		CompiledBlock block;
+		try {
+			byte[] code = generate(start, kinds, length);
+			block = (CompiledBlock) LOOKUP.defineHiddenClass(code, true).lookupClass().getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Failed to compile block at " + start, e);
+		}
+
+		blocks[start] = block;
+		lengths[start] = (byte) length;
+		Logger.log(Logger.DEBUG, Logger.BLOCK_COMPILED, start, length);
+		return block;
+	}
+
+	/**
+	 * Returns if the given kind of instruction can be compiled. <br>
+	 * Anything that can throw an <code>EmulatorException</code>, or needs to loop in place, is left to the interpreter.
+	 *
+	 * @param kind the kind
+	 * @return true if it can be compiled
+	 */
+	private static boolean isCompilable(int kind) {
+		switch (kind) {
+		case Decoder.UNDECODED: case Decoder.INVALID:
+		case Decoder.CALL: case Decoder.RET:
+		case Decoder.SKP: case Decoder.SKNP: case Decoder.LD_VX_K:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Returns if the given kind of instruction is the last instruction of a block.
+	 *
+	 * @param kind the kind
+	 * @return true if the block ends with this instruction
+	 */
+	private static boolean endsBlock(int kind) {
+		switch (kind) {
+		case Decoder.JP: case Decoder.JP_V0:
+		case Decoder.SE_VX_NN: case Decoder.SNE_VX_NN: case Decoder.SE_VX_VY: case Decoder.SNE_VX_VY:
+		case Decoder.LD_B_VX: case Decoder.LD_I_VX:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Generates the class file for a block. <br>
+	 * The generated <code>run(Chip8)</code> keeps the register array in local 2, and otherwise mirrors the
+	 * interpreter statement for statement, so the two always agree.
+	 *
+	 * @param start the start address
+	 * @param kinds the kind of each instruction
+	 * @param length the number of instructions
+	 * @return the class file
+	 */
+	private byte[] generate(int start, int[] kinds, int length) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, "emulator/Block", null, "java/lang/Object", new String[] {BLOCK});
+
+		MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "run", "(L" + CHIP8 + ";)V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitFieldInsn(GETFIELD, CHIP8, "register", "[I");
+		mv.visitVarInsn(ASTORE, 2);
+
+		boolean terminated = false;
+		for (int i = 0; i < length; i++) {
+			int address = start + i * 2;
+			terminated = emit(mv, kinds[i], address, chip8.argX[address], chip8.argY[address], chip8.argImm[address]);
+		}
+
+		//if we ran out of instructions without jumping, we carry on with the next one
+		if (!terminated) setPC(mv, start + length * 2);
+
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Emits the bytecode for a single instruction.
+	 *
+	 * @return true if the instruction set the PC, ending the block
+	 */
+	private static boolean emit(MethodVisitor mv, int kind, int address, int x, int y, int imm) {
+		int next = address + 2;
+
+		switch (kind) {
+		case Decoder.CLS:		// 00E0
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "clearScreen", "()V", false);
+			return false;
+		case Decoder.JP:		// 1NNN
+			setPC(mv, imm);
+			return true;
+		case Decoder.SE_VX_NN:	// 3XNN
+			loadReg(mv, x);
+			push(mv, imm);
+			skip(mv, IF_ICMPNE, address);
+			return true;
+		case Decoder.SNE_VX_NN:	// 4XNN
+			loadReg(mv, x);
+			push(mv, imm);
+			skip(mv, IF_ICMPEQ, address);
+			return true;
+		case Decoder.SE_VX_VY:	// 5XY0
+			loadReg(mv, x);
+			loadReg(mv, y);
+			skip(mv, IF_ICMPNE, address);
+			return true;
+		case Decoder.LD_VX_NN:	// 6XNN
+			beginStore(mv, x);
+			push(mv, imm);
+			mv.visitInsn(IASTORE);
+			return false;
+		case Decoder.ADD_VX_NN:	// 7XNN
+			beginStore(mv, x);
+			loadReg(mv, x);
+			push(mv, imm);
+			mv.visitInsn(IADD);
+			mask(mv, 0xFF);
+			mv.visitInsn(IASTORE);
+			return false;
+		case Decoder.LD_VX_VY:	// 8XY0
+			beginStore(mv, x);
+			loadReg(mv, y);
+			mv.visitInsn(IASTORE);
+			return false;
+		case Decoder.OR:		// 8XY1
+			binary(mv, x, y, IOR, false);
+			return false;
+		case Decoder.AND:		// 8XY2
+			binary(mv, x, y, IAND, false);
+			return false;
+		case Decoder.XOR:		// 8XY3
+			binary(mv, x, y, IXOR, true);
+			return false;
+		case Decoder.ADD_VX_VY:	// 8XY4, VX += VY, then VF = VX >> 8 (the carry), then VX &= 0xFF
+			binary(mv, x, y, IADD, false);
+			beginStore(mv, 15);
+			loadReg(mv, x);
+			push(mv, 8);
+			mv.visitInsn(ISHR);
+			mv.visitInsn(IASTORE);
+			beginStore(mv, x);
+			loadReg(mv, x);
+			mask(mv, 0xFF);
+			mv.visitInsn(IASTORE);
+			return false;
+		case Decoder.SUB:		// 8XY5, VF = not borrow, then VX = (VX - VY) & 0xFF
+			notBorrow(mv, x, y);
+			binary(mv, x, y, ISUB, true);
+			return false;
+		case Decoder.SHR:		// 8XY6, VF = VX & 1, then VX = (VX >> 1) & 0xFF
+			beginStore(mv, 15);
+			loadReg(mv, x);
+			mask(mv, 1);
+			mv.visitInsn(IASTORE);
+			shift(mv, x, ISHR);
+			return false;
+		case Decoder.SUBN:		// 8XY7, VF = not borrow, then VX = (VY - VX) & 0xFF
+			notBorrow(mv, y, x);
+			beginStore(mv, x);
+			loadReg(mv, y);
+			loadReg(mv, x);
+			mv.visitInsn(ISUB);
+			mask(mv, 0xFF);
+			mv.visitInsn(IASTORE);
+			return false;
+		case Decoder.SHL:		// 8XYE, VF = VX >> 7, then VX = (VX << 1) & 0xFF
+			beginStore(mv, 15);
+			loadReg(mv, x);
+			push(mv, 7);
+			mv.visitInsn(ISHR);
+			mv.visitInsn(IASTORE);
+			shift(mv, x, ISHL);
+			return false;
+		case Decoder.SNE_VX_VY:	// 9XY0
+			loadReg(mv, x);
+			loadReg(mv, y);
+			skip(mv, IF_ICMPEQ, address);
+			return true;
+		case Decoder.LD_I:		// ANNN
+			mv.visitVarInsn(ALOAD, 1);
+			push(mv, imm);
+			mv.visitFieldInsn(PUTFIELD, CHIP8, "I", "I");
+			return false;
+		case Decoder.JP_V0:		// BNNN
+			mv.visitVarInsn(ALOAD, 1);
+			push(mv, imm);
+			loadReg(mv, 0);
+			mv.visitInsn(IADD);
+			mask(mv, 0xFFFF);
+			mv.visitFieldInsn(PUTFIELD, CHIP8, "PC", "I");
+			return true;
+		case Decoder.RND:		// CXNN
+			beginStore(mv, x);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "nextRandom", "()I", false);
+			push(mv, imm);
+			mv.visitInsn(IAND);
+			mv.visitInsn(IASTORE);
+			return false;
+		case Decoder.DRW:		// DXYN, the PC is set first in case the sprite reads outside memory
+			setPC(mv, next);
+			mv.visitVarInsn(ALOAD, 1);
+			loadReg(mv, x);
+			loadReg(mv, y);
+			push(mv, imm);
+			mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "draw", "(III)V", false);
+			return false;
+		case Decoder.LD_VX_DT:	// FX07
+			beginStore(mv, x);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitFieldInsn(GETFIELD, CHIP8, "delayTimer", "I");
+			mask(mv, 0xFF);
+			mv.visitInsn(IASTORE);
+			return false;
+		case Decoder.LD_DT_VX:	// FX15
+			mv.visitVarInsn(ALOAD, 1);
+			loadReg(mv, x);
+			mv.visitFieldInsn(PUTFIELD, CHIP8, "delayTimer", "I");
+			return false;
+		case Decoder.LD_ST_VX:	// FX18
+			mv.visitVarInsn(ALOAD, 1);
+			loadReg(mv, x);
+			mv.visitFieldInsn(PUTFIELD, CHIP8, "soundTimer", "I");
+			return false;
+		case Decoder.ADD_I_VX:	// FX1E, VF = (0xFFF - (I + VX)) >>> 31 (the carry), then I = (I + VX) & 0xFFFF
+			beginStore(mv, 15);
+			push(mv, 0xFFF);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitFieldInsn(GETFIELD, CHIP8, "I", "I");
+			loadReg(mv, x);
+			mv.visitInsn(IADD);
+			mv.visitInsn(ISUB);
+			push(mv, 31);
+			mv.visitInsn(IUSHR);
+			mv.visitInsn(IASTORE);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitFieldInsn(GETFIELD, CHIP8, "I", "I");
+			loadReg(mv, x);
+			mv.visitInsn(IADD);
+			mask(mv, 0xFFFF);
+			mv.visitFieldInsn(PUTFIELD, CHIP8, "I", "I");
+			return false;
+		case Decoder.LD_F_VX:	// FX29
+			mv.visitVarInsn(ALOAD, 1);
+			loadReg(mv, x);
+			push(mv, 5);
+			mv.visitInsn(IMUL);
+			mv.visitFieldInsn(PUTFIELD, CHIP8, "I", "I");
+			return false;
+		case Decoder.LD_B_VX:	// FX33, a store, so it ends the block
+			setPC(mv, next);
+			callWithX(mv, "storeBCD", x);
+			return true;
+		case Decoder.LD_I_VX:	// FX55, a store, so it ends the block
+			setPC(mv, next);
+			callWithX(mv, "storeRegisters", x);
+			return true;
+		case Decoder.LD_VX_I:	// FX65
+			setPC(mv, next);
+			callWithX(mv, "loadRegisters", x);
+			return false;
+		default:
+			throw new IllegalArgumentException("Cannot compile instruction kind " + kind);
+		}
+	}
+
+	/**
+	 * Emits <code>PC = (condition fails) ? address + 2 : address + 4</code>,
+	 * where the two operands of the comparison are already on the stack.
+	 */
+	private static void skip(MethodVisitor mv, int failOpcode, int address) {
+		Label noSkip = new Label();
+		Label end = new Label();
+
+		mv.visitJumpInsn(failOpcode, noSkip);
+		setPC(mv, address + 4);
+		mv.visitJumpInsn(GOTO, end);
+		mv.visitLabel(noSkip);
+		setPC(mv, address + 2);
+		mv.visitLabel(end);
+	}
+
+	/**
+	 * Emits <code>VF = ((a - b) >>> 31) ^ 1</code>, which is 0 if there is a borrow and 1 otherwise.
+	 */
+	private static void notBorrow(MethodVisitor mv, int a, int b) {
+		beginStore(mv, 15);
+		loadReg(mv, a);
+		loadReg(mv, b);
+		mv.visitInsn(ISUB);
+		push(mv, 31);
+		mv.visitInsn(IUSHR);
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(IXOR);
+		mv.visitInsn(IASTORE);
+	}
+
+	/**
+	 * Emits <code>VX = VX op VY</code>, optionally masked to 8 bits.
+	 */
+	private static void binary(MethodVisitor mv, int x, int y, int op, boolean masked) {
+		beginStore(mv, x);
+		loadReg(mv, x);
+		loadReg(mv, y);
+		mv.visitInsn(op);
+		if (masked) mask(mv, 0xFF);
+		mv.visitInsn(IASTORE);
+	}
+
+	/**
+	 * Emits <code>VX = (VX shift 1) &amp; 0xFF</code>.
+	 */
+	private static void shift(MethodVisitor mv, int x, int op) {
+		beginStore(mv, x);
+		loadReg(mv, x);
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(op);
+		mask(mv, 0xFF);
+		mv.visitInsn(IASTORE);
+	}
+
+	/**
+	 * Emits a call to an emulator method taking the register number X.
+	 */
+	private static void callWithX(MethodVisitor mv, String method, int x) {
+		mv.visitVarInsn(ALOAD, 1);
+		push(mv, x);
+		mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, method, "(I)V", false);
+	}
+
+	/**
+	 * Emits <code>PC = value</code>.
+	 */
+	private static void setPC(MethodVisitor mv, int value) {
+		mv.visitVarInsn(ALOAD, 1);
+		push(mv, value);
+		mv.visitFieldInsn(PUTFIELD, CHIP8, "PC", "I");
+	}
+
+	/**
+	 * Pushes the register array and index, ready for an <code>IASTORE</code>.
+	 */
+	private static void beginStore(MethodVisitor mv, int reg) {
+		mv.visitVarInsn(ALOAD, 2);
+		push(mv, reg);
+	}
+
+	/**
+	 * Pushes the value of a register.
+	 */
+	private static void loadReg(MethodVisitor mv, int reg) {
+		mv.visitVarInsn(ALOAD, 2);
+		push(mv, reg);
+		mv.visitInsn(IALOAD);
+	}
+
+	/**
+	 * Masks the value on top of the stack.
+	 */
+	private static void mask(MethodVisitor mv, int mask) {
+		push(mv, mask);
+		mv.visitInsn(IAND);
+	}
+
+	/**
+	 * Pushes an int constant using the smallest instruction for it.
+	 */
+	private static void push(MethodVisitor mv, int value) {
+		if (value >= -1 && value <= 5) mv.visitInsn(ICONST_0 + value);
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) mv.visitIntInsn(BIPUSH, value);
+		else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) mv.visitIntInsn(SIPUSH, value);
+		else mv.visitLdcInsn(value);
+	}
+}
@@ -0,0 +1,297 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A bounded history of emulator states, one a frame, which can be stepped back through. <br>
+ * All methods must be called from the thread running the emulator.
+ * <p>
+ * Every <code>keyframeInterval</code> frames a keyframe is stored, and every other frame is stored as the
+ * difference to the keyframe before it. Differences are the XOR of the two states, run length encoded as
+ * pairs of (unchanged bytes, changed bytes) followed by the changed bytes. Between frames only a few registers
+ * and display rows change, so most frames take tens of bytes.
+ * <p>
+ * The encoded frames are kept back to back in a single circular array, so the memory used is fixed when
+ * the buffer is created. When it is full the oldest keyframe, and all frames depending on it, are dropped.
+ *
+ * @author Troy Shaw
+ */
+public final class RewindBuffer {
+
+	/** The default memory used to store frames, 8MB */
+	public static final int DEFAULT_CAPACITY = 8 << 20;
+
+	/** The default number of frames kept, 10 minutes worth */
+	public static final int DEFAULT_FRAMES = Scheduler.FRAME_RATE * 60 * 10;
+
+	/** The default number of frames between keyframes, one a second */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = Scheduler.FRAME_RATE;
+
+	//the largest a frame can be when encoded. A run takes at most 3 bytes of header, and is followed by at least 2 unchanged bytes
+	private static final int MAX_ENCODED = Chip8.STATE_SIZE * 2 + 16;
+	//the state keyframes are encoded against
+	private static final byte[] ZERO = new byte[Chip8.STATE_SIZE];
+
+	private final int keyframeInterval;
+
+	//the encoded frames
+	private final byte[] data;
+	private int writePos;
+
+	//per frame: where it is in data, its length, and the slot of its keyframe (its own slot if it is one)
+	private final int[] offsets, lengths, keySlots;
+	//the slot of the oldest frame, and the number of frames
+	private int head, count;
+
+	//the decoded keyframe of the newest frame, and its slot (-1 if not decoded)
+	private final byte[] keyframe = new byte[Chip8.STATE_SIZE];
+	private int keyframeSlot = -1;
+
+	//scratch space for the current state and its encoding
+	private final byte[] state = new byte[Chip8.STATE_SIZE];
+	private final ByteBuffer stateBuffer = ByteBuffer.wrap(state);
+	private final byte[] encoded = new byte[MAX_ENCODED];
+
+	/**
+	 * Creates a buffer with the default capacity, frames and keyframe interval.
+	 */
+	public RewindBuffer() {
+		this(DEFAULT_CAPACITY, DEFAULT_FRAMES, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * Creates a buffer.
+	 *
+	 * @param capacity the number of bytes used to store frames. Must fit at least two full states
+	 * @param maxFrames the most frames kept
+	 * @param keyframeInterval the number of frames between keyframes
+	 */
+	public RewindBuffer(int capacity, int maxFrames, int keyframeInterval) {
+		if (capacity < MAX_ENCODED * 2) throw new IllegalArgumentException("capacity must be at least " + MAX_ENCODED * 2);
+		if (maxFrames < 2) throw new IllegalArgumentException("must keep at least 2 frames");
+		if (keyframeInterval <= 0) throw new IllegalArgumentException("keyframe interval must be positive");
+
+		this.keyframeInterval = keyframeInterval;
+
+		data = new byte[capacity];
+		offsets = new int[maxFrames];
+		lengths = new int[maxFrames];
+		keySlots = new int[maxFrames];
+	}
+
+	/**
+	 * Records the current state of the emulator as the newest frame.
+	 *
+	 * @param chip8 the emulator
+	 */
+	public void record(Chip8 chip8) {
+		stateBuffer.clear();
+		chip8.saveState(stateBuffer);
+
+		int slot = (head + count) % offsets.length;
+		int newest = (slot + offsets.length - 1) % offsets.length;
+
+		//we store a keyframe if it has been long enough since the last, or we don't have the last
+		boolean key = count == 0 || keyframeSlot != keySlots[newest]
+				|| (newest - keySlots[newest] + offsets.length) % offsets.length + 1 >= keyframeInterval;
+
+		int length = encode(state, key ? ZERO : keyframe, encoded);
+		int offset = allocate(length);
+
+		//making room dropped our keyframe, so this frame must be one
+		if (!key && count == 0) {
+			key = true;
+			length = encode(state, ZERO, encoded);
+			offset = allocate(length);
+		}
+
+		slot = (head + count) % offsets.length;
+		System.arraycopy(encoded, 0, data, offset, length);
+		offsets[slot] = offset;
+		lengths[slot] = length;
+		writePos = offset + length;
+		count++;
+
+		if (key) {
+			System.arraycopy(state, 0, keyframe, 0, state.length);
+			keyframeSlot = slot;
+			keySlots[slot] = slot;
+		} else {
+			keySlots[slot] = keyframeSlot;
+		}
+	}
+
+	/**
+	 * Steps back a frame, dropping the newest frame and restoring the emulator to the one before it.
+	 *
+	 * @param chip8 the emulator
+	 * @return true if the emulator was restored, false if there is no earlier frame
+	 */
+	public boolean rewind(Chip8 chip8) {
+		if (count < 2) return false;
+
+		count--;
+		int dropped = (head + count) % offsets.length;
+		if (dropped == keyframeSlot) keyframeSlot = -1;
+
+		int slot = (dropped + offsets.length - 1) % offsets.length;
+		writePos = offsets[slot] + lengths[slot];
+
+		int key = keySlots[slot];
+		if (key != keyframeSlot) {
+			decode(key, ZERO, keyframe);
+			keyframeSlot = key;
+		}
+		if (slot == key) System.arraycopy(keyframe, 0, state, 0, state.length);
+		else decode(slot, keyframe, state);
+
+		stateBuffer.clear();
+		chip8.loadState(stateBuffer);
+		return true;
+	}
+
+	/**
+	 * Drops all frames.
+	 */
+	public void clear() {
+		head = count = writePos = 0;
+		keyframeSlot = -1;
+	}
+
+	/**
+	 * Returns the number of frames stored.
+	 * @return the number of frames
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of bytes taken by the stored frames.
+	 * @return the bytes used
+	 */
+	public int bytesUsed() {
+		if (count == 0) return 0;
+
+		int used = 0;
+		for (int i = 0; i < count; i++) used += lengths[(head + i) % offsets.length];
+		return used;
+	}
+
+	/**
+	 * Finds room for a frame of the given length after the newest, dropping the oldest frames until it fits.
+	 *
+	 * @param length the length of the frame
+	 * @return the offset to write it at
+	 */
+	private int allocate(int length) {
+		while (true) {
+			if (count == 0) return 0;
+
+			if (count < offsets.length) {
+				int oldest = offsets[head];
+				//the frames don't wrap, so there is room after the newest and before the oldest
+				if (oldest < writePos) {
+					if (writePos + length <= data.length) return writePos;
+					if (length <= oldest) return 0;
+				} else if (writePos + length <= oldest) {
+					return writePos;
+				}
+			}
+
+			dropOldest();
+		}
+	}
+
+	/**
+	 * Drops the oldest keyframe and the frames that depend on it.
+	 */
+	private void dropOldest() {
+		do {
+			if (head == keyframeSlot) keyframeSlot = -1;
+			head = (head + 1) % offsets.length;
+			count--;
+		} while (count > 0 && keySlots[head] != head);
+	}
+
+	/**
+	 * Encodes the difference between a state and a reference state.
+	 *
+	 * @param state the state
+	 * @param reference the state to encode against
+	 * @param out where to write the encoding
+	 * @return the length of the encoding
+	 */
+	private static int encode(byte[] state, byte[] reference, byte[] out) {
+		int n = state.length;
+		int i = 0, o = 0;
+
+		while (true) {
+			//skip the unchanged bytes. Most of the state is unchanged, so we let mismatch() compare in bulk
+			int start = i;
+			int mismatch = Arrays.mismatch(state, i, n, reference, i, n);
+			//anything unchanged at the end is implied
+			if (mismatch == -1) return o;
+			i += mismatch;
+
+			//changed bytes run until 2 unchanged ones in a row, as a single one is cheaper to include
+			int changed = i;
+			while (i < n && (state[i] != reference[i] || (i + 1 < n && state[i + 1] != reference[i + 1]))) i++;
+
+			o = writeVarInt(out, o, changed - start);
+			o = writeVarInt(out, o, i - changed);
+			for (int j = changed; j < i; j++) out[o++] = (byte) (state[j] ^ reference[j]);
+		}
+	}
+
+	/**
+	 * Decodes a stored frame against its reference state.
+	 *
+	 * @param slot the slot of the frame
+	 * @param reference the state it was encoded against
+	 * @param out where to write the state
+	 */
+	private void decode(int slot, byte[] reference, byte[] out) {
+		System.arraycopy(reference, 0, out, 0, out.length);
+
+		int p = offsets[slot];
+		int end = p + lengths[slot];
+		int pos = 0;
+
+		while (p < end) {
+			//each varint is read as its value and the position after it
+			long v = readVarInt(data, p);
+			pos += (int) v;
+			p = (int) (v >>> 32);
+
+			v = readVarInt(data, p);
+			int changed = (int) v;
+			p = (int) (v >>> 32);
+
+			for (int j = 0; j < changed; j++) out[pos++] ^= data[p++];
+		}
+	}
+
+	private static int writeVarInt(byte[] out, int o, int value) {
+		while (value >= 0x80) {
+			out[o++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		out[o++] = (byte) value;
+		return o;
+	}
+
+	//returns the value in the low 32 bits, and the position after it in the high 32 bits
+	private static long readVarInt(byte[] in, int p) {
+		int value = 0, shift = 0;
+		int b;
+		do {
+			b = in[p++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return ((long) p << 32) | (value & 0xFFFFFFFFL);
+	}
+}
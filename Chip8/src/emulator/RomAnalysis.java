@@ -0,0 +1,231 @@
+package emulator;
+
+/**
+ * What a ROM does, found by disassembling it without running it. <br>
+ * The ROM is disassembled by following its control flow from the start (a recursive descent), so sprites and other
+ * data mixed in with the code aren't mistaken for instructions. Jumps through <code>BNNN</code> can't be followed,
+ * so code only reached that way is missed.
+ * <p>
+ * The analysis finds which kinds of instruction the ROM uses (see <code>Decoder</code>), and which quirks it may
+ * depend on: instructions whose behaviour differs between interpreters, so a ROM using them may need a particular
+ * interpreter's behaviour to run properly.
+ *
+ * @author Troy Shaw
+ */
+public final class RomAnalysis {
+
+	/** Shifts with <code>8XY6</code>/<code>8XYE</code> where X and Y differ; the original shifted VY, later ones VX */
+	public static final int QUIRK_SHIFT 			= 1;
+	/** Uses <code>FX55</code>/<code>FX65</code>, which on the original interpreter also advance I */
+	public static final int QUIRK_LOAD_STORE 		= 2;
+	/** Jumps with <code>BNNN</code>, which later interpreters read as <code>BXNN</code>, adding VX */
+	public static final int QUIRK_JUMP 				= 4;
+	/** Uses <code>8XY1</code>/<code>8XY2</code>/<code>8XY3</code>, which on the original interpreter also reset VF */
+	public static final int QUIRK_LOGIC 			= 8;
+	/** Points I at its own code, and stores to memory, so may modify itself */
+	public static final int QUIRK_SELF_MODIFYING 	= 16;
+	/** Uses SUPER-CHIP instructions, which this emulator doesn't support */
+	public static final int QUIRK_SUPER_CHIP 		= 32;
+	/** Reaches an instruction which isn't valid, so is likely broken or for another machine */
+	public static final int QUIRK_INVALID 			= 64;
+
+	private static final String[] QUIRK_NAMES = {
+		"shift", "load/store", "jump", "logic", "self-modifying", "super-chip", "invalid"
+	};
+
+	private final int instructions;
+	private final long opcodes;
+	private final int quirks;
+
+	private RomAnalysis(int instructions, long opcodes, int quirks) {
+		this.instructions = instructions;
+		this.opcodes = opcodes;
+		this.quirks = quirks;
+	}
+
+	/**
+	 * Rebuilds an analysis from the values returned by its getters, such as when reading it back from disk.
+	 *
+	 * @param instructions the number of instructions
+	 * @param opcodes the kinds of instruction used
+	 * @param quirks the quirks
+	 * @return the analysis
+	 */
+	public static RomAnalysis of(int instructions, long opcodes, int quirks) {
+		return new RomAnalysis(instructions, opcodes, quirks);
+	}
+
+	/**
+	 * Disassembles the given program and returns what was found.
+	 *
+	 * @param program the program, as it would be loaded at 512
+	 * @return the analysis
+	 */
+	public static RomAnalysis analyze(byte[] program) {
+		int end = 512 + program.length;
+		boolean[] code = new boolean[Chip8.MAX_MEMORY];
+		boolean[] pointed = new boolean[Chip8.MAX_MEMORY];
+		int[] pending = new int[Chip8.MAX_MEMORY];
+		int count = 0, instructions = 0, quirks = 0;
+		long opcodes = 0;
+
+		pending[count++] = 512;
+		while (count > 0) {
+			int address = pending[--count];
+
+			//follow this path until it ends, pushing the other ways it can go
+			while (address >= 512 && address + 1 < end && !code[address]) {
+				code[address] = true;
+				instructions++;
+
+				int opcode = (program[address - 512] & 0xFF) << 8 | (program[address - 511] & 0xFF);
+				int kind = Decoder.decode(opcode);
+				int x = (opcode >> 8) & 0xF, y = (opcode >> 4) & 0xF;
+				opcodes |= 1L << kind;
+
+				if (isSuperChip(opcode)) {
+					quirks |= QUIRK_SUPER_CHIP;
+					//00FD exits the interpreter
+					if (opcode == 0x00FD) break;
+					address += 2;
+					continue;
+				}
+
+				switch (kind) {
+				case Decoder.INVALID:
+					quirks |= QUIRK_INVALID;
+					address = -1;
+					break;
+				case Decoder.RET:
+					address = -1;
+					break;
+				case Decoder.JP:
+					address = opcode & 0xFFF;
+					break;
+				case Decoder.CALL:
+					if (count < pending.length) pending[count++] = address + 2;
+					address = opcode & 0xFFF;
+					break;
+				case Decoder.JP_V0:
+					quirks |= QUIRK_JUMP;
+					address = -1;
+					break;
+				case Decoder.SE_VX_NN: case Decoder.SNE_VX_NN: case Decoder.SE_VX_VY: case Decoder.SNE_VX_VY:
+				case Decoder.SKP: case Decoder.SKNP:
+					if (count < pending.length) pending[count++] = address + 4;
+					address += 2;
+					break;
+				case Decoder.SHR: case Decoder.SHL:
+					if (x != y) quirks |= QUIRK_SHIFT;
+					address += 2;
+					break;
+				case Decoder.OR: case Decoder.AND: case Decoder.XOR:
+					quirks |= QUIRK_LOGIC;
+					address += 2;
+					break;
+				case Decoder.LD_I_VX: case Decoder.LD_VX_I:
+					quirks |= QUIRK_LOAD_STORE;
+					address += 2;
+					break;
+				case Decoder.LD_I:
+					pointed[opcode & 0xFFF] = true;
+					address += 2;
+					break;
+				default:
+					address += 2;
+					break;
+				}
+			}
+		}
+
+		//a program which stores to memory, and points I at an instruction, may be writing over its own code
+		if ((opcodes & (1L << Decoder.LD_I_VX | 1L << Decoder.LD_B_VX)) != 0) {
+			for (int i = 512; i < end; i++) {
+				if (pointed[i] && code[i]) {
+					quirks |= QUIRK_SELF_MODIFYING;
+					break;
+				}
+			}
+		}
+
+		return new RomAnalysis(instructions, opcodes, quirks);
+	}
+
+	/**
+	 * Returns if the given opcode is one of the SUPER-CHIP extensions.
+	 * @param opcode the opcode
+	 * @return true if it is a SUPER-CHIP instruction
+	 */
+	private static boolean isSuperChip(int opcode) {
+		if (opcode >= 0x00FB && opcode <= 0x00FF) return true;		//scroll, exit, low/high resolution
+		if ((opcode & 0xFFF0) == 0x00C0) return true;				//scroll down
+		if ((opcode & 0xF00F) == 0xD000) return true;				//16x16 sprite
+
+		int low = opcode & 0xF0FF;
+		return low == 0xF030 || low == 0xF075 || low == 0xF085;		//big font, flags
+	}
+
+	/**
+	 * Returns the number of instructions reachable from the start of the ROM.
+	 * @return the number of instructions
+	 */
+	public int getInstructionCount() {
+		return instructions;
+	}
+
+	/**
+	 * Returns the kinds of instruction used, as a bitmask with bit <code>k</code> set if kind <code>k</code> is used.
+	 * @return the kinds used
+	 */
+	public long getOpcodes() {
+		return opcodes;
+	}
+
+	/**
+	 * Returns if the ROM uses the given kind of instruction.
+	 * @param kind the kind, from <code>Decoder</code>
+	 * @return true if it is used
+	 */
+	public boolean uses(int kind) {
+		return (opcodes & (1L << kind)) != 0;
+	}
+
+	/**
+	 * Returns the quirks the ROM may depend on, as a bitmask of the <code>QUIRK_</code> constants.
+	 * @return the quirks
+	 */
+	public int getQuirks() {
+		return quirks;
+	}
+
+	/**
+	 * Returns if the ROM may depend on the given quirk.
+	 * @param quirk the quirk, one of the <code>QUIRK_</code> constants
+	 * @return true if it may
+	 */
+	public boolean hasQuirk(int quirk) {
+		return (quirks & quirk) != 0;
+	}
+
+	/**
+	 * Returns the names of the given quirks, separated by commas, such as <code>shift, jump</code>.
+	 * @param quirks the quirks, as a bitmask of the <code>QUIRK_</code> constants
+	 * @return the names, or an empty string if there are none
+	 */
+	public static String quirkNames(int quirks) {
+		StringBuilder b = new StringBuilder();
+
+		for (int i = 0; i < QUIRK_NAMES.length; i++) {
+			if ((quirks & (1 << i)) == 0) continue;
+			if (b.length() != 0) b.append(", ");
+			b.append(QUIRK_NAMES[i]);
+		}
+
+		return b.toString();
+	}
+
+	@Override
+	public String toString() {
+		return instructions + " instructions" + (quirks == 0 ? "" : " (" + quirkNames(quirks) + ")");
+	}
+}
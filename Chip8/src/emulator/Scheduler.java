@@ -0,0 +1,483 @@
+package emulator;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import emulator.exception.EmulatorException;
+import emulator.exception.InvalidKeyException;
+import emulator.exception.ProgramFaultException;
+
+/**
+ * Runs an emulator in real time. <br>
+ * Each 60hz frame executes a fixed number of instructions then ticks the timers, all on the same thread, 
+ * so the speed of a game is the same on every machine.
+ * <p>
+ * Frames are paced by parking until the next frame deadline. Deadlines are kept on a fixed grid, so any 
+ * oversleeping is made up on the next frame rather than accumulating. If the scheduler falls too far behind 
+ * (for example after the machine was suspended) it gives up catching up and starts a new grid.
+ * <p>
+ * In turbo mode frames are run back to back as fast as possible. The timers still tick once a frame, so games 
+ * behave as they would at normal speed, only sooner. The listener is only told about one frame each 60th of a 
+ * second of real time, so drawing doesn't slow the emulator down.
+ * <p>
+ * Key presses can come from any thread. They are held in atomically updated masks, a bit per key, and given to
+ * the emulator between frames, along with when each key was pressed so the emulator can measure its input latency.
+ * <p>
+ * While the game is waiting for a key (FX0A) and its timers have run down, every frame would be the same, so the 
+ * scheduler parks its thread until a key is pressed (or it is otherwise disturbed). An idle game uses no CPU.
+ *
+ * @author Troy Shaw
+ */
+public class Scheduler implements Runnable {
+
+	/** The number of frames run a second, which is also the rate of the timers */
+	public static final int FRAME_RATE = 60;
+
+	/** The default number of instructions executed each frame (600 a second) */
+	public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 10;
+
+	private static final long FRAME_NANOS = 1000000000L / FRAME_RATE;
+	//if we are this far behind we give up trying to catch up
+	private static final long MAX_LAG_NANOS = FRAME_NANOS * 5;
+	//how often the speed is measured
+	private static final long SPEED_NANOS = 500000000L;
+
+	private final Chip8 chip8;
+	private final FrameListener listener;
+	//tasks to run on the scheduler thread before the next frame
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	//the keys held, and the keys pressed since the last frame, so a press and release within a frame isn't lost
+	private final AtomicInteger heldKeys = new AtomicInteger();
+	private final AtomicInteger pressedKeys = new AtomicInteger();
+	//when each key was last pressed, from System.nanoTime()
+	private final AtomicLongArray pressTimes = new AtomicLongArray(16);
+
+	private volatile int instructionsPerFrame = DEFAULT_INSTRUCTIONS_PER_FRAME;
+	private volatile boolean paused, stopped;
+	//the history frames are recorded to, and if we are stepping back through it instead of running
+	private volatile RewindBuffer rewindBuffer;
+	private volatile boolean rewinding;
+	private volatile boolean turbo;
+	//the movie key presses are recorded to, if any
+	private volatile InputMovie movie;
+	//the speed over the last measurement, as a multiple of normal speed
+	private volatile double speed;
+	private volatile Thread thread;
+	//set while parked waiting for a key, so only then do key presses need to wake us
+	private volatile boolean idle;
+	//wakes us instead of unparking the thread, when run by a session host
+	private volatile Runnable waker;
+	//if the last frame run wasn't presented to the listener
+	private boolean unpresented;
+
+	/**
+	 * Constructs a new scheduler which runs the given emulator, notifying the listener after each frame.
+	 * 
+	 * @param chip8 the emulator
+	 * @param listener the listener
+	 */
+	public Scheduler(Chip8 chip8, FrameListener listener) {
+		if (chip8 == null || listener == null) throw new NullPointerException();
+
+		this.chip8 = chip8;
+		this.listener = listener;
+	}
+
+	/**
+	 * Runs frames until stopped, or until the emulator throws an exception.
+	 */
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+		long deadline = System.nanoTime();
+		//when we last told the listener about a frame, and when we last measured the speed
+		long presented = deadline;
+		long measured = deadline;
+		int frames = 0;
+
+		while (!stopped) {
+			Runnable task;
+			while ((task = tasks.poll()) != null) task.run();
+
+			long now = System.nanoTime();
+			//rewinding always happens at normal speed, and there is no point spinning while paused
+			boolean fast = turbo && !rewinding && !paused;
+
+			if (!paused) {
+				//at normal speed every frame is presented. In turbo mode we skip frames, presenting at 60hz
+				boolean present = !fast || now - presented >= FRAME_NANOS;
+				if (present) presented = now;
+
+				try {
+					runFrame(present);
+				} catch (EmulatorException e) {
+					stopped = true;
+					listener.emulatorFailed(e);
+					return;
+				} catch (RuntimeException e) {
+					//otherwise the thread would die silently, leaving the game frozen
+					stopped = true;
+					listener.emulatorFailed(new ProgramFaultException(e));
+					return;
+				}
+				frames++;
+			}
+
+			if (now - measured >= SPEED_NANOS) {
+				speed = (double) frames * FRAME_NANOS / (now - measured);
+				measured = now;
+				frames = 0;
+			}
+
+			//frames are no longer changing, so we wait for a key and then start a new grid
+			if (!paused && waitForKey()) {
+				deadline = System.nanoTime();
+				continue;
+			}
+
+			//in turbo mode we don't wait, and start a new grid when we return to normal speed
+			if (fast) {
+				deadline = now;
+				continue;
+			}
+
+			deadline += FRAME_NANOS;
+			long behind = System.nanoTime() - deadline;
+			if (behind > MAX_LAG_NANOS) {
+				Logger.log(Logger.WARN, Logger.FRAMES_DROPPED, behind, 0);
+				deadline = System.nanoTime();
+			}
+
+			//park until the deadline. We may wake early (unpark, or spuriously) so we loop
+			long remaining;
+			while (!stopped && (remaining = deadline - System.nanoTime()) > 0) 
+				LockSupport.parkNanos(this, remaining);
+		}
+	}
+
+	/**
+	 * Parks the thread while the game waits for a key, and nothing else could change its state. <br>
+	 * That is while the timers are at 0 (so nothing counts down or beeps), no key has been pressed, and no task, 
+	 * rewind, pause or stop is waiting to be handled.
+	 * 
+	 * @return true if we parked
+	 */
+	private boolean waitForKey() {
+		if (!chip8.isWaitingForKey() || chip8.getDelayTimer() != 0 || chip8.getSoundTimer() != 0) return false;
+
+		//in turbo mode the last frame may have been skipped, and it could be showing for a long time
+		if (unpresented) {
+			listener.frameCompleted(chip8);
+			unpresented = false;
+		}
+
+		//the flag is set before we check, so anything changed after the check will see it and unpark us
+		idle = true;
+		boolean parked = false;
+		while (!stopped && !paused && !rewinding && tasks.isEmpty() && (heldKeys.get() | pressedKeys.get()) == 0) {
+			LockSupport.park(this);
+			parked = true;
+		}
+		idle = false;
+
+		return parked;
+	}
+
+	/**
+	 * Wakes the thread if it is parked waiting for a key, or if run by a session host, runs the waker.
+	 */
+	private void wake() {
+		if (!idle) return;
+
+		Runnable w = waker;
+		Thread t = thread;
+		if (w != null) w.run();
+		else if (t != null) LockSupport.unpark(t);
+	}
+
+	/**
+	 * Runs a single frame: a frames worth of instructions, then a tick of the timers. <br>
+	 * If there is a rewind buffer the frame is recorded to it. While rewinding the emulator is instead 
+	 * stepped back a frame, if there is one to step back to.
+	 * 
+	 * @throws EmulatorException if the emulator throws one
+	 */
+	public void runFrame() throws EmulatorException {
+		runFrame(true);
+	}
+
+	/**
+	 * Runs a single frame, only notifying the listener if it is to be presented.
+	 * 
+	 * @param present true to notify the listener
+	 * @throws EmulatorException if the emulator throws one
+	 */
+	private void runFrame(boolean present) throws EmulatorException {
+		RewindBuffer rewind = rewindBuffer;
+
+		if (rewind != null && rewinding) {
+			if (rewind.rewind(chip8)) {
+				//anything recorded after the frame we are back to no longer happened
+				InputMovie m = movie;
+				if (m != null) m.truncate(chip8.getFrameCount());
+
+				if (present) listener.frameCompleted(chip8);
+				unpresented = !present;
+			}
+			return;
+		}
+
+		applyKeys();
+		chip8.execute(instructionsPerFrame);
+		chip8.tickTimers();
+		if (rewind != null) rewind.record(chip8);
+		if (present) listener.frameCompleted(chip8);
+		unpresented = !present;
+	}
+
+	/**
+	 * Runs the waiting tasks, then a frame, for a <code>SessionHost</code> which runs the schedulers of many
+	 * emulators on a few threads rather than each on its own. The frame isn't run while paused, or while 
+	 * <code>isIdle()</code>.
+	 *
+	 * @return false if the scheduler is stopped, including by the emulator failing (the listener having been told)
+	 */
+	boolean runHostedFrame() {
+		if (stopped) return false;
+
+		Runnable task;
+		while ((task = tasks.poll()) != null) task.run();
+		if (paused || isIdle()) return true;
+
+		try {
+			runFrame(true);
+			return true;
+		} catch (EmulatorException e) {
+			stopped = true;
+			listener.emulatorFailed(e);
+			return false;
+		} catch (RuntimeException e) {
+			//a bad program can still index outside memory, etc. Only its own session should stop
+			stopped = true;
+			listener.emulatorFailed(new ProgramFaultException(e));
+			return false;
+		}
+	}
+
+	/**
+	 * Returns if a hosted scheduler has nothing to do until it is disturbed: it is paused or idle, and has no tasks.
+	 * @return true if it can be parked
+	 */
+	boolean canPark() {
+		return !stopped && tasks.isEmpty() && (paused || isIdle());
+	}
+
+	/**
+	 * Parks a hosted scheduler if it has nothing to do, so the next key press, task, resume or rewind runs the
+	 * waker set with <code>setWaker()</code>. The host must then run the scheduler again, and call 
+	 * <code>unpark()</code>.
+	 * 
+	 * @return true if parked
+	 */
+	boolean park() {
+		//the flag is set before we check, so anything changed after the check will see it and run the waker
+		idle = true;
+		if (canPark()) return true;
+
+		idle = false;
+		return false;
+	}
+
+	/**
+	 * Marks a hosted scheduler as no longer parked.
+	 */
+	void unpark() {
+		idle = false;
+	}
+
+	/**
+	 * Sets what wakes a hosted scheduler once parked.
+	 * @param waker the waker
+	 */
+	void setWaker(Runnable waker) {
+		this.waker = waker;
+	}
+
+	/**
+	 * Returns if the game is waiting for a key, and nothing could change its state: the timers are at 0 (so nothing 
+	 * counts down or beeps), no key has been pressed and we aren't rewinding.
+	 * @return true if idle
+	 */
+	private boolean isIdle() {
+		return chip8.isWaitingForKey() && chip8.getDelayTimer() == 0 && chip8.getSoundTimer() == 0 && !rewinding
+				&& (heldKeys.get() | pressedKeys.get()) == 0;
+	}
+
+	/**
+	 * Runs the given task on the scheduler thread, before the next frame. <br>
+	 * This is the safe way to touch the emulator while it is running. Tasks still run while paused.
+	 * 
+	 * @param task the task
+	 */
+	public void runBetweenFrames(Runnable task) {
+		tasks.add(task);
+		wake();
+	}
+
+	/**
+	 * Presses or releases a key on the emulator. Can be called from any thread, and never blocks. <br>
+	 * The key changes between frames, on the scheduler thread, so a game sees the same input whatever the timing 
+	 * of the key press. If a key is pressed and released before the next frame, it is held for that frame. 
+	 * If a movie is being recorded the key change is added to it.
+	 * 
+	 * @param key the key, 0 - 15
+	 * @param pressed true if pressed, false if released
+	 */
+	public void keyInteracted(int key, boolean pressed) {
+		if (key < 0 || key > 15) {
+			listener.emulatorFailed(new InvalidKeyException("Invalid key " + (pressed ? "pushed: " : "released: ") + key));
+			return;
+		}
+
+		int bit = 1 << key;
+		if (pressed) {
+			//the time is set first, so it is there when the scheduler sees the press
+			pressTimes.set(key, System.nanoTime());
+			setBits(pressedKeys, bit, true);
+		}
+		setBits(heldKeys, bit, pressed);
+		wake();
+	}
+
+	/**
+	 * Gives the emulator the keys changed since the last frame, recording them to the movie if there is one.
+	 * 
+	 * @throws InvalidKeyException if the emulator rejects a key
+	 */
+	private void applyKeys() throws InvalidKeyException {
+		int keys = heldKeys.get() | pressedKeys.getAndSet(0);
+		int changed = keys ^ chip8.getKeys();
+
+		while (changed != 0) {
+			int key = Integer.numberOfTrailingZeros(changed);
+			changed &= changed - 1;
+
+			boolean pressed = (keys & (1 << key)) != 0;
+			chip8.keyInteracted(key, pressed, pressTimes.get(key));
+
+			InputMovie m = movie;
+			if (m != null) m.record(chip8.getFrameCount(), key, pressed);
+		}
+	}
+
+	//sets or clears the given bits, without locking
+	private static void setBits(AtomicInteger mask, int bits, boolean set) {
+		int old;
+		do {
+			old = mask.get();
+		} while (!mask.compareAndSet(old, set ? old | bits : old & ~bits));
+	}
+
+	/**
+	 * Sets the movie key presses are recorded to, or null to stop recording. <br>
+	 * The movie is then only touched by the scheduler thread until recording stops.
+	 * 
+	 * @param movie the movie
+	 */
+	public void setMovie(InputMovie movie) {
+		this.movie = movie;
+	}
+
+	/**
+	 * Stops the scheduler. The thread running it will return from <code>run()</code> shortly after.
+	 */
+	public void stop() {
+		stopped = true;
+
+		Thread t = thread;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	/**
+	 * Pauses or resumes the scheduler. While paused no instructions are executed and the timers don't count down.
+	 * @param paused true to pause
+	 */
+	public void setPaused(boolean paused) {
+		this.paused = paused;
+		wake();
+	}
+
+	/**
+	 * Returns if the scheduler is paused.
+	 * @return true if paused
+	 */
+	public boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * Sets the buffer each frame is recorded to, or null to stop recording. <br>
+	 * The buffer is then only touched by the scheduler thread, so should be set before the scheduler is started.
+	 * @param rewindBuffer the buffer
+	 */
+	public void setRewindBuffer(RewindBuffer rewindBuffer) {
+		this.rewindBuffer = rewindBuffer;
+	}
+
+	/**
+	 * Starts or stops rewinding. While rewinding each frame steps the emulator back a frame instead of running it.
+	 * @param rewinding true to rewind
+	 */
+	public void setRewinding(boolean rewinding) {
+		this.rewinding = rewinding;
+		wake();
+	}
+
+	/**
+	 * Turns turbo mode on or off. In turbo mode frames are run as fast as possible, and only some are presented.
+	 * @param turbo true for turbo mode
+	 */
+	public void setTurbo(boolean turbo) {
+		this.turbo = turbo;
+
+		Thread t = thread;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	/**
+	 * Returns if the scheduler is in turbo mode.
+	 * @return true if in turbo mode
+	 */
+	public boolean isTurbo() {
+		return turbo;
+	}
+
+	/**
+	 * Returns the speed the emulator ran at over the last half second, as a multiple of normal speed. <br>
+	 * This is around 1 at normal speed, and 0 when paused.
+	 * @return the speed
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Sets the number of instructions executed each frame. The instructions per second is 60 times this.
+	 * @param instructionsPerFrame the instructions per frame, must be positive
+	 */
+	public void setInstructionsPerFrame(int instructionsPerFrame) {
+		if (instructionsPerFrame <= 0) throw new IllegalArgumentException("instructions per frame must be positive");
+		this.instructionsPerFrame = instructionsPerFrame;
+	}
+
+	/**
+	 * Returns the number of instructions executed each frame.
+	 * @return the instructions per frame
+	 */
+	public int getInstructionsPerFrame() {
+		return instructionsPerFrame;
+	}
+}
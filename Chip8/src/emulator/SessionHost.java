@@ -0,0 +1,460 @@
+package emulator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many emulators at once, each in its own session, on a small pool of carrier threads. <br>
+ * A <code>Scheduler</code> needs a thread per game; a host runs thousands of games on a thread per core.
+ * <p>
+ * The host is a client of a <code>FrameClock</code>. Each frame it ticks starts a round, in which every session
+ * runs one frame: its scheduler's tasks, a slice of <code>getInstructionsPerFrame()</code> instructions, and a tick
+ * of the timers. The carriers take sessions from the round in turn, so sessions share the carriers round-robin,
+ * and the order is rotated each round so no session is always last. A round only starts once the last has
+ * finished, so a session never runs two frames at once. If the carriers fall too far behind they skip ahead
+ * rather than catching up, counting the frames dropped.
+ * <p>
+ * Sessions can be suspended and resumed. A suspended session, or one waiting for a key with its timers run down, 
+ * is parked: it is left out of the rounds, costing nothing, until it is resumed or a key is pressed. Closed 
+ * sessions give their emulator back to the host, which reuses it (through <code>loadProgram()</code>) for the next 
+ * session opened rather than allocating a new one.
+ * <p>
+ * Listeners are called on the carrier threads, so should return quickly. The emulator a listener is given belongs
+ * to the host once its session is closed, so must not be kept.
+ *
+ * @author Troy Shaw
+ */
+public final class SessionHost {
+
+	/** The most emulators kept for reuse once their sessions are closed */
+	public static final int MAX_POOLED = 256;
+
+	//the index of a session which is parked, or closed
+	private static final int PARKED = -2;
+	private static final int CLOSED = -1;
+
+	//if we are this many frames behind we give up trying to catch up
+	private static final int MAX_LAG_FRAMES = 5;
+	private static final long FRAME_NANOS = 1000000000L / Scheduler.FRAME_RATE;
+
+	/**
+	 * A game running on the host.
+	 */
+	public final class Session implements KeyController {
+
+		private final Chip8 chip8;
+		private final Scheduler scheduler;
+		//the index in the hosts running sessions, or PARKED or CLOSED. Guarded by the host
+		private int index;
+
+		private Session(Chip8 chip8, Scheduler scheduler) {
+			this.chip8 = chip8;
+			this.scheduler = scheduler;
+
+			scheduler.setWaker(new Runnable() {
+				@Override
+				public void run() {
+					unpark(Session.this);
+				}
+			});
+		}
+
+		/**
+		 * Presses or releases a key. Can be called from any thread, and never blocks. <br>
+		 * See <code>Scheduler.keyInteracted()</code>.
+		 *
+		 * @param key the key, 0 - 15
+		 * @param pressed true if pressed, false if released
+		 */
+		@Override
+		public void keyInteracted(int key, boolean pressed) {
+			scheduler.keyInteracted(key, pressed);
+		}
+
+		/**
+		 * Runs the given task on a carrier thread, before the session's next frame. <br>
+		 * This is the safe way to touch the emulator while it is running. Tasks still run while suspended.
+		 *
+		 * @param task the task
+		 */
+		public void runBetweenFrames(Runnable task) {
+			scheduler.runBetweenFrames(task);
+		}
+
+		/**
+		 * Suspends the session. Its instructions and timers stop until it is resumed.
+		 */
+		public void suspend() {
+			scheduler.setPaused(true);
+		}
+
+		/**
+		 * Resumes the session after it was suspended.
+		 */
+		public void resume() {
+			scheduler.setPaused(false);
+		}
+
+		/**
+		 * Returns if the session is suspended.
+		 * @return true if suspended
+		 */
+		public boolean isSuspended() {
+			return scheduler.isPaused();
+		}
+
+		/**
+		 * Sets the number of instructions run each frame, the slice this session is given of each round.
+		 * @param instructionsPerFrame the instructions per frame, must be positive
+		 */
+		public void setInstructionsPerFrame(int instructionsPerFrame) {
+			scheduler.setInstructionsPerFrame(instructionsPerFrame);
+		}
+
+		/**
+		 * Returns the number of instructions run each frame.
+		 * @return the instructions per frame
+		 */
+		public int getInstructionsPerFrame() {
+			return scheduler.getInstructionsPerFrame();
+		}
+
+		/**
+		 * Closes the session. It runs no more frames, and its emulator is reused by a later session. <br>
+		 * A session is also closed when its emulator fails.
+		 */
+		public void close() {
+			SessionHost.this.close(this);
+		}
+
+		/**
+		 * Returns if the session is closed.
+		 * @return true if closed
+		 */
+		public boolean isClosed() {
+			synchronized (SessionHost.this) {
+				return index == CLOSED || shutdown;
+			}
+		}
+	}
+
+	/**
+	 * The sessions run for one frame, which the carriers claim one at a time.
+	 */
+	private static final class Round {
+
+		private final Session[] sessions;
+		private final int first;
+		//the next session to claim, and the number claimed which haven't finished their frame
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicInteger left;
+
+		private Round(Session[] sessions, int first) {
+			this.sessions = sessions;
+			this.first = first;
+			this.left = new AtomicInteger(sessions.length);
+		}
+
+		/**
+		 * Returns if there are sessions left to claim.
+		 * @return true if there are
+		 */
+		private boolean hasNext() {
+			return next.get() < sessions.length;
+		}
+
+		/**
+		 * Claims the next session, starting from the first and wrapping round.
+		 * @return the session, or null if they are all claimed
+		 */
+		private Session claim() {
+			int i = next.getAndIncrement();
+			return i < sessions.length ? sessions[(first + i) % sessions.length] : null;
+		}
+	}
+
+	private final FrameClock clock;
+	private final FrameClock.Client ticker;
+
+	//everything below is guarded by this
+	//the sessions which aren't parked, and the number which are
+	private final List<Session> sessions = new ArrayList<Session>();
+	private int parked;
+	//the sessions as an array for the next round, or null if they have changed since it was made
+	private Session[] order;
+	//the emulators ready for reuse, and those of sessions closed since the current round started
+	private final ArrayDeque<Chip8> pool = new ArrayDeque<Chip8>();
+	private final List<Chip8> released = new ArrayList<Chip8>();
+	private Round round;
+	//the frames ticked by the clock, and the rounds started for them
+	private long due, started;
+	private long dropped;
+	private boolean shutdown;
+
+	/**
+	 * Creates a host with the given number of carrier threads, paced by the shared frame clock.
+	 * @param threads the number of carrier threads, such as the number of processors
+	 */
+	public SessionHost(int threads) {
+		this(threads, FrameClock.shared());
+	}
+
+	/**
+	 * Creates a host with the given number of carrier threads, paced by the given clock.
+	 *
+	 * @param threads the number of carrier threads
+	 * @param clock the clock
+	 */
+	public SessionHost(int threads, FrameClock clock) {
+		if (clock == null) throw new NullPointerException();
+		if (threads <= 0) throw new IllegalArgumentException("threads must be positive");
+
+		this.clock = clock;
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					carry();
+				}
+			}, "Chip8 session host " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		ticker = new FrameClock.Client() {
+			@Override
+			public void frame() {
+				synchronized (SessionHost.this) {
+					due++;
+					SessionHost.this.notifyAll();
+				}
+			}
+		};
+		clock.add(ticker);
+	}
+
+	/**
+	 * Opens a session running the given program, which starts from the next round. <br>
+	 * The emulator is taken from those of closed sessions if there are any, otherwise a new one is created.
+	 * Either way it starts with a new seed, no speaker, and the recompiler, profiler and tracer off.
+	 *
+	 * @param program the program
+	 * @param listener notified after each frame the session runs, on a carrier thread
+	 * @return the session
+	 * @throws IllegalArgumentException if the program is more than 3584 bytes
+	 */
+	public Session open(byte[] program, FrameListener listener) {
+		if (listener == null) throw new NullPointerException();
+
+		Chip8 chip8;
+		synchronized (this) {
+			if (shutdown) throw new IllegalStateException("host is shut down");
+			chip8 = pool.poll();
+		}
+
+		if (chip8 == null) {
+			chip8 = new Chip8();
+		} else {
+			chip8.setSeed(System.nanoTime());
+			chip8.setSpeaker(null);
+			chip8.setRecompilerEnabled(false);
+			chip8.setProfiler(null);
+			chip8.setTracer(null);
+		}
+		chip8.loadProgram(program);
+
+		Session session = new Session(chip8, new Scheduler(chip8, listener));
+		synchronized (this) {
+			if (shutdown) throw new IllegalStateException("host is shut down");
+
+			session.index = sessions.size();
+			sessions.add(session);
+			order = null;
+		}
+		return session;
+	}
+
+	/**
+	 * Closes a session, if it isn't already closed.
+	 * @param session the session
+	 */
+	private synchronized void close(Session session) {
+		if (session.index == CLOSED || shutdown) return;
+
+		session.scheduler.stop();
+		if (session.index == PARKED) parked--;
+		else remove(session);
+		session.index = CLOSED;
+
+		//the current round may still be running it, so it is only reused from the next
+		if (pool.size() + released.size() < MAX_POOLED) released.add(session.chip8);
+	}
+
+	/**
+	 * Leaves a session out of the rounds, if its scheduler has nothing to do until disturbed.
+	 * @param session the session
+	 */
+	private synchronized void park(Session session) {
+		if (session.index < 0 || shutdown || !session.scheduler.park()) return;
+
+		remove(session);
+		session.index = PARKED;
+		parked++;
+	}
+
+	/**
+	 * Puts a parked session back in the rounds. Called by its scheduler when it is disturbed.
+	 * @param session the session
+	 */
+	private synchronized void unpark(Session session) {
+		if (session.index != PARKED || shutdown) return;
+
+		session.scheduler.unpark();
+		session.index = sessions.size();
+		sessions.add(session);
+		parked--;
+		order = null;
+	}
+
+	/**
+	 * Removes a session from the running sessions. Must hold the lock.
+	 * @param session the session
+	 */
+	private void remove(Session session) {
+		//the last session takes the removed ones place, so removing is constant time
+		Session last = sessions.remove(sessions.size() - 1);
+		if (last != session) {
+			sessions.set(session.index, last);
+			last.index = session.index;
+		}
+		order = null;
+	}
+
+	/**
+	 * Closes every session and stops the carrier threads. This host cannot be used afterwards.
+	 */
+	public void shutdown() {
+		clock.remove(ticker);
+
+		synchronized (this) {
+			shutdown = true;
+			//parked sessions are never run again, so needn't be stopped
+			for (Session s : sessions) s.scheduler.stop();
+			sessions.clear();
+			parked = 0;
+			order = null;
+			pool.clear();
+			released.clear();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the number of open sessions, including those parked.
+	 * @return the number of sessions
+	 */
+	public synchronized int getSessionCount() {
+		return sessions.size() + parked;
+	}
+
+	/**
+	 * Returns the number of sessions parked, as they are suspended or waiting for a key.
+	 * @return the number parked
+	 */
+	public synchronized int getParkedCount() {
+		return parked;
+	}
+
+	/**
+	 * Returns the number of emulators kept for reuse.
+	 * @return the number pooled
+	 */
+	public synchronized int getPooledCount() {
+		return pool.size() + released.size();
+	}
+
+	/**
+	 * Returns the number of frames dropped because the carriers fell too far behind.
+	 * @return the frames dropped
+	 */
+	public synchronized long getDroppedFrames() {
+		return dropped;
+	}
+
+	/**
+	 * A carrier thread's loop, running the sessions of each round until the host is shut down.
+	 */
+	private void carry() {
+		Round r;
+		while ((r = awaitRound()) != null) {
+			Session s;
+			while ((s = r.claim()) != null) {
+				try {
+					if (!s.scheduler.runHostedFrame()) close(s);
+					else if (s.scheduler.canPark()) park(s);
+				} catch (RuntimeException e) {
+					//a failing task or listener closes its own session, not the carrier thread and so the whole host
+					close(s);
+					Logger.log(Logger.ERROR, Logger.SESSION_FAILED, getSessionCount(), 0);
+				} finally {
+					//every claimed session must be counted, or the round never finishes
+					if (r.left.decrementAndGet() == 0) roundFinished();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for a round with sessions left to claim, starting a new one if the last has finished and a frame is due.
+	 * @return the round, or null once shut down
+	 */
+	private synchronized Round awaitRound() {
+		while (!shutdown) {
+			if (round != null && round.hasNext()) return round;
+			if ((round == null || round.left.get() == 0) && due > started) {
+				startRound();
+				continue;
+			}
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				//only shutting down ends a carrier
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Starts the next round. Must hold the lock, and the last round must have finished.
+	 */
+	private void startRound() {
+		//no round is running, so the emulators of closed sessions are now free
+		pool.addAll(released);
+		released.clear();
+
+		long behind = due - started;
+		if (behind > MAX_LAG_FRAMES) {
+			Logger.log(Logger.WARN, Logger.FRAMES_DROPPED, behind * FRAME_NANOS, 0);
+			dropped += behind - 1;
+			started = due - 1;
+		}
+		started++;
+
+		if (sessions.isEmpty()) {
+			round = null;
+			return;
+		}
+		if (order == null) order = sessions.toArray(new Session[sessions.size()]);
+		round = new Round(order, (int) (started % order.length));
+	}
+
+	/**
+	 * Called by the carrier which finished the last session of a round, so waiting carriers can start the next.
+	 */
+	private synchronized void roundFinished() {
+		notifyAll();
+	}
+}
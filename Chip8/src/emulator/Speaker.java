@@ -0,0 +1,16 @@
+package emulator;
+
+/**
+ * Something that can make the beep sound of the emulator. <br>
+ * This keeps the emulator itself free of any sound or GUI dependencies.
+ *
+ * @author Troy Shaw
+ */
+public interface Speaker {
+
+	/**
+	 * Makes a single beep sound. <br>
+	 * This is called from whichever thread ticks the emulator timers, so it should return quickly.
+	 */
+	public void beep();
+}
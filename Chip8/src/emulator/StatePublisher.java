@@ -0,0 +1,122 @@
+package emulator;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Publishes snapshots of an emulator's registers from the thread running it, for another thread (such as the
+ * Swing event thread) to read. <br>
+ * At most 60 snapshots a second are published, however often <code>publish()</code> is called.
+ * <p>
+ * Snapshots are written into two preallocated buffers in turn, so publishing never allocates or blocks.
+ * Each buffer has a version which is odd while it is being written (a seqlock); a reader copies the newest
+ * buffer and tries again if it was written to while being copied.
+ *
+ * @author Troy Shaw
+ */
+public final class StatePublisher {
+
+	//the least time between snapshots
+	private static final long PUBLISH_NANOS = 1000000000L / Scheduler.FRAME_RATE;
+
+	/**
+	 * The registers of the emulator at one point in time.
+	 */
+	public static final class Snapshot {
+		public final int[] registers = new int[16];
+		public int I, PC, SP, delayTimer, soundTimer;
+		/** The pressed keys, a bit per key */
+		public int keys;
+		public long instructions, frames;
+		/** The latency of the last key press, and the mean latency, in nanoseconds (see <code>Chip8.getLastInputLatency()</code>) */
+		public long inputLatency, averageInputLatency;
+
+		private void copyFrom(Snapshot s) {
+			System.arraycopy(s.registers, 0, registers, 0, registers.length);
+			I = s.I;
+			PC = s.PC;
+			SP = s.SP;
+			delayTimer = s.delayTimer;
+			soundTimer = s.soundTimer;
+			keys = s.keys;
+			instructions = s.instructions;
+			frames = s.frames;
+			inputLatency = s.inputLatency;
+			averageInputLatency = s.averageInputLatency;
+		}
+	}
+
+	private final Snapshot[] buffers = {new Snapshot(), new Snapshot()};
+	private final VersionHolder[] versions = {new VersionHolder(), new VersionHolder()};
+	//the buffer holding the newest snapshot, -1 if nothing is published yet
+	private volatile int newest = -1;
+
+	//only used by the publishing thread
+	private long lastPublished;
+
+	//each version on its own object, so it can be volatile
+	private static final class VersionHolder {
+		volatile int version;
+	}
+
+	/**
+	 * Publishes a snapshot of the emulator, unless one was published less than a 60th of a second ago. <br>
+	 * Must only be called from the thread running the emulator.
+	 *
+	 * @param chip8 the emulator
+	 * @return true if a snapshot was published
+	 */
+	public boolean publish(Chip8 chip8) {
+		long now = System.nanoTime();
+		if (newest != -1 && now - lastPublished < PUBLISH_NANOS) return false;
+		lastPublished = now;
+
+		//write into the buffer that isn't the newest
+		int b = newest == 0 ? 1 : 0;
+		Snapshot s = buffers[b];
+		VersionHolder v = versions[b];
+
+		v.version++;
+		VarHandle.storeStoreFence();
+
+		System.arraycopy(chip8.getRegister(), 0, s.registers, 0, s.registers.length);
+		s.I = chip8.getIRegister();
+		s.PC = chip8.getPC();
+		s.SP = chip8.getSP();
+		s.delayTimer = chip8.getDelayTimer();
+		s.soundTimer = chip8.getSoundTimer();
+		s.instructions = chip8.getInstructionCount();
+		s.frames = chip8.getFrameCount();
+		s.keys = chip8.getKeys();
+		s.inputLatency = chip8.getLastInputLatency();
+		s.averageInputLatency = chip8.getAverageInputLatency();
+
+		v.version++;
+		newest = b;
+		return true;
+	}
+
+	/**
+	 * Copies the newest snapshot into the given one. Can be called from any thread.
+	 *
+	 * @param into the snapshot to copy into
+	 * @return false if nothing has been published yet
+	 */
+	public boolean read(Snapshot into) {
+		while (true) {
+			int b = newest;
+			if (b == -1) return false;
+
+			VersionHolder v = versions[b];
+			int before = v.version;
+			if ((before & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+
+			into.copyFrom(buffers[b]);
+
+			VarHandle.loadLoadFence();
+			if (v.version == before) return true;
+		}
+	}
+}
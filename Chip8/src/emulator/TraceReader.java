@@ -0,0 +1,275 @@
+package emulator;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads back a trace written by <code>TraceWriter</code>, one record at a time. <br>
+ * The file is streamed through a small buffer, so traces of any length can be read. Nothing is allocated per record;
+ * <code>next()</code> moves to the next record, and the getters return the fields of the current one.
+ * <p>
+ * Usage: <code>TraceReader &lt;trace&gt; [other trace]</code> prints the disassembled trace, or with two traces
+ * prints the first record at which they differ.
+ *
+ * @author Troy Shaw
+ */
+public final class TraceReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final boolean memoryWrites;
+	private boolean eof;
+
+	//the current record
+	private long index = -1;
+	private int pc, opcode, vx, vf, I;
+	private int writeAddress, writeLength;
+	private final int[] written = new int[16];
+
+	/**
+	 * Opens a trace file and reads its header.
+	 *
+	 * @param file the file
+	 * @throws IOException if the file cannot be read, or isn't a trace of this version
+	 */
+	public TraceReader(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		buffer.flip();
+
+		try {
+			if (!fill(TraceWriter.HEADER_SIZE)) throw new IOException("Not a trace: " + file);
+			if (buffer.getInt() != TraceWriter.MAGIC) throw new IOException("Not a trace: " + file);
+
+			short version = buffer.getShort();
+			if (version != TraceWriter.VERSION) throw new IOException("Unsupported trace version: " + version);
+
+			memoryWrites = (buffer.getShort() & TraceWriter.MEMORY_WRITES) != 0;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return true if there was another record, false at the end of the trace
+	 * @throws IOException if the file cannot be read, ends part way through a record, or has a corrupt record
+	 */
+	public boolean next() throws IOException {
+		if (!fill(TraceWriter.RECORD_SIZE)) {
+			if (buffer.hasRemaining()) throw new EOFException("Trace ends part way through a record");
+			return false;
+		}
+
+		pc 		= buffer.getShort() & 0xFFFF;
+		opcode 	= buffer.getShort() & 0xFFFF;
+		vx 		= buffer.get() & 0xFF;
+		vf 		= buffer.get() & 0xFF;
+		I 		= buffer.getShort() & 0xFFFF;
+
+		writeLength = 0;
+		if (memoryWrites && TraceWriter.writtenBytes(opcode) != 0) {
+			if (!fill(3)) throw new EOFException("Trace ends part way through a record");
+			writeAddress = buffer.getShort() & 0xFFFF;
+			writeLength = buffer.get() & 0xFF;
+			if (writeLength > written.length) {
+				int length = writeLength;
+				writeLength = 0;
+				throw new IOException("Corrupt trace: record " + (index + 1) + " writes " + length + " bytes, at most " 
+						+ written.length + " are possible");
+			}
+
+			if (!fill(writeLength)) throw new EOFException("Trace ends part way through a record");
+			for (int i = 0; i < writeLength; i++) written[i] = buffer.get() & 0xFF;
+		}
+
+		index++;
+		return true;
+	}
+
+	/**
+	 * Returns the index of the current record, counting from 0.
+	 * @return the index
+	 */
+	public long getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns the address of the instruction.
+	 * @return the PC
+	 */
+	public int getPC() {
+		return pc;
+	}
+
+	/**
+	 * Returns the instructions opcode.
+	 * @return the opcode
+	 */
+	public int getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * Returns the value of VX after the instruction, where X is the second nibble of the opcode.
+	 * @return the value of VX
+	 */
+	public int getVX() {
+		return vx;
+	}
+
+	/**
+	 * Returns the value of VF after the instruction.
+	 * @return the value of VF
+	 */
+	public int getVF() {
+		return vf;
+	}
+
+	/**
+	 * Returns the value of I after the instruction.
+	 * @return the value of I
+	 */
+	public int getI() {
+		return I;
+	}
+
+	/**
+	 * Returns if the trace includes the memory written by instructions.
+	 * @return true if memory writes are traced
+	 */
+	public boolean hasMemoryWrites() {
+		return memoryWrites;
+	}
+
+	/**
+	 * Returns the number of bytes of memory the instruction wrote, or 0 if it didn't (or memory writes aren't traced).
+	 * @return the number of bytes written
+	 */
+	public int getWriteLength() {
+		return writeLength;
+	}
+
+	/**
+	 * Returns the address the instruction wrote memory at.
+	 * @return the address
+	 */
+	public int getWriteAddress() {
+		return writeAddress;
+	}
+
+	/**
+	 * Returns the i'th byte the instruction wrote.
+	 * @param i the index, less than <code>getWriteLength()</code>
+	 * @return the byte
+	 */
+	public int getWritten(int i) {
+		if (i < 0 || i >= writeLength) throw new IndexOutOfBoundsException("no byte " + i + " written");
+		return written[i];
+	}
+
+	/**
+	 * Returns if the current records of the two readers are the same.
+	 * @param other the other reader
+	 * @return true if they are the same
+	 */
+	public boolean sameRecord(TraceReader other) {
+		if (pc != other.pc || opcode != other.opcode || vx != other.vx || vf != other.vf || I != other.I) return false;
+		if (writeLength != other.writeLength || writeAddress != other.writeAddress) return false;
+
+		for (int i = 0; i < writeLength; i++) if (written[i] != other.written[i]) return false;
+		return true;
+	}
+
+	/**
+	 * Returns the current record as a line of text.
+	 * @return the record
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%10d  %03X  %04X  %-16s VX=%02X VF=%02X I=%03X", index, pc, opcode,
+				Decoder.disassemble(opcode), vx, vf, I));
+
+		if (writeLength != 0) {
+			sb.append(String.format("  [%03X] =", writeAddress));
+			for (int i = 0; i < writeLength; i++) sb.append(String.format(" %02X", written[i]));
+		}
+
+		return sb.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Makes sure at least the given number of bytes are in the buffer, reading more if needed.
+	 *
+	 * @param bytes the number of bytes needed
+	 * @return true if there are enough, false if the file ended first
+	 * @throws IOException if the file cannot be read
+	 */
+	private boolean fill(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) return true;
+
+		buffer.compact();
+		while (!eof && buffer.position() < bytes) {
+			if (channel.read(buffer) == -1) eof = true;
+		}
+		buffer.flip();
+
+		return buffer.remaining() >= bytes;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TraceReader <trace> [other trace]");
+			System.exit(1);
+		}
+
+		TraceReader a = new TraceReader(new File(args[0]));
+		try {
+			if (args.length == 1) {
+				while (a.next()) System.out.println(a);
+				return;
+			}
+
+			TraceReader b = new TraceReader(new File(args[1]));
+			try {
+				while (true) {
+					boolean moreA = a.next(), moreB = b.next();
+
+					if (!moreA && !moreB) {
+						System.out.println("Traces are the same (" + (a.getIndex() + 1) + " records)");
+						return;
+					} else if (!moreA || !moreB) {
+						System.out.println("Trace " + (moreA ? args[1] : args[0]) + " ends first, after " +
+								(moreA ? b.getIndex() + 1 : a.getIndex() + 1) + " records");
+						return;
+					} else if (!a.sameRecord(b)) {
+						System.out.println("Traces differ at record " + a.getIndex() + ":");
+						System.out.println(a);
+						System.out.println(b);
+						return;
+					}
+				}
+			} finally {
+				b.close();
+			}
+		} finally {
+			a.close();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package emulator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Exchanger;
+
+import emulator.exception.EmulatorException;
+
+/**
+ * Writes a trace of every instruction an emulator executes to a binary file. <br>
+ * Tracing is turned on by giving a writer to <code>Chip8.setTracer()</code>. Like the profiler, the emulator only
+ * checks for a tracer once per call to <code>execute()</code>, and while tracing instructions are always interpreted.
+ * <p>
+ * The file is a header, then a record per instruction, all little-endian. The header is the magic number, a
+ * short version, and a short of flags (<code>MEMORY_WRITES</code>). Each record is 8 bytes: the PC and opcode
+ * (shorts), then the new values of VX (X being from the opcode) and VF, then I (a short). If the memory writes
+ * flag is set, records of FX33 and FX55 are followed by the address written (a short), the number of bytes written
+ * and the bytes themselves. Use <code>TraceReader</code> to read a trace back.
+ * <p>
+ * Records are written into one of two buffers. When it is full the buffers are swapped, and a background thread
+ * writes the full one to the file while the emulator fills the other. Nothing is allocated per instruction.
+ *
+ * @author Troy Shaw
+ */
+public final class TraceWriter implements Closeable {
+
+	/** The magic number a trace file starts with ("C8TR") */
+	public static final int MAGIC = 0x52543843;
+	/** The version of the trace format */
+	public static final short VERSION = 1;
+	/** The length of the header */
+	public static final int HEADER_SIZE = 8;
+	/** The length of a record, not including any memory write */
+	public static final int RECORD_SIZE = 8;
+	/** Flag set if the records of instructions which write memory are followed by what they wrote */
+	public static final int MEMORY_WRITES = 1;
+
+	//the size of each of the two buffers
+	private static final int BUFFER_SIZE = 1 << 20;
+	//the longest a record can be, an FX55 storing every register
+	private static final int MAX_RECORD = RECORD_SIZE + 3 + 16;
+
+	private final FileChannel channel;
+	private final boolean memoryWrites;
+	private final Thread writer;
+	//swaps the full buffer for the empty one. Handing over null tells the writer thread to finish
+	private final Exchanger<ByteBuffer> exchanger = new Exchanger<ByteBuffer>();
+
+	//the buffer the emulator writes records into
+	private ByteBuffer buffer;
+	//the first failure of the writer thread
+	private volatile IOException failure;
+	private boolean closed;
+
+	/**
+	 * Creates a trace file, replacing any existing one, and starts the thread writing to it.
+	 *
+	 * @param file the file
+	 * @param memoryWrites true to also trace the bytes written by FX33 and FX55
+	 * @throws IOException if the file cannot be created
+	 */
+	public TraceWriter(File file, boolean memoryWrites) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.memoryWrites = memoryWrites;
+
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short) (memoryWrites ? MEMORY_WRITES : 0));
+
+		final ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeBuffers(spare);
+			}
+		}, "Chip8 trace writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Executes the given number of instructions on the emulator, tracing each one.
+	 *
+	 * @param chip8 the emulator
+	 * @param budget the number of instructions to execute
+	 * @return the number of instructions executed
+	 * @throws EmulatorException
+	 */
+	int execute(Chip8 chip8, int budget) throws EmulatorException {
+		if (closed) throw new IllegalStateException("trace is closed");
+
+		int[] register = chip8.register;
+
+		for (int i = 0; i < budget; i++) {
+			int pc = chip8.PC;
+			int address = chip8.I;
+			//an out of bounds PC is left for tick() to throw on
+			int opcode = pc >= 0 && pc < Chip8.MAX_MEMORY - 1 ? (chip8.read(pc) << 8) | chip8.read(pc + 1) : 0;
+
+			chip8.tick();
+
+			if (buffer.remaining() < MAX_RECORD) swap();
+
+			int x = (opcode >> 8) & 0xF;
+			buffer.putShort((short) pc);
+			buffer.putShort((short) opcode);
+			buffer.put((byte) register[x]);
+			buffer.put((byte) register[0xF]);
+			buffer.putShort((short) chip8.I);
+
+			if (memoryWrites) {
+				int written = writtenBytes(opcode);
+				if (written != 0) {
+					buffer.putShort((short) address);
+					buffer.put((byte) written);
+					for (int j = 0; j < written; j++) buffer.put((byte) chip8.read(address + j));
+				}
+			}
+
+			if (chip8.waitingForKey) return i + 1;
+		}
+
+		return budget;
+	}
+
+	/**
+	 * Writes everything traced so far, stops the writer thread and closes the file.
+	 *
+	 * @throws IOException if writing the trace failed at any point
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+
+		//hand over the last records, then null to tell the writer thread to finish
+		swap();
+		buffer = null;
+		swap();
+
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				//ignore
+			}
+		}
+
+		channel.close();
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Returns the number of bytes of memory written by the given opcode: 3 for FX33, X + 1 for FX55, and 0 otherwise.
+	 *
+	 * @param opcode the opcode
+	 * @return the number of bytes written
+	 */
+	static int writtenBytes(int opcode) {
+		switch (opcode & 0xF0FF) {
+		case 0xF033: return 3;
+		case 0xF055: return ((opcode >> 8) & 0xF) + 1;
+		default: return 0;
+		}
+	}
+
+	/**
+	 * Hands the full buffer to the writer thread, taking the empty one in exchange. <br>
+	 * This only waits if the writer is still writing the previous buffer.
+	 */
+	private void swap() {
+		if (buffer != null) buffer.flip();
+
+		while (true) {
+			try {
+				buffer = exchanger.exchange(buffer);
+				return;
+			} catch (InterruptedException e) {
+				//we can't lose the buffer, so we try again
+			}
+		}
+	}
+
+	/**
+	 * The writer threads loop, which writes each full buffer it is given until it is given null.
+	 *
+	 * @param empty the buffer to give to the emulator first
+	 */
+	private void writeBuffers(ByteBuffer empty) {
+		while (true) {
+			ByteBuffer full;
+			try {
+				full = exchanger.exchange(empty);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (full == null) return;
+
+			//after a failure we keep swapping buffers so the emulator never blocks, but drop their contents
+			if (failure == null) {
+				try {
+					while (full.hasRemaining()) channel.write(full);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+
+			full.clear();
+			empty = full;
+		}
+	}
+}
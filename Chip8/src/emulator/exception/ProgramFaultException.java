@@ -0,0 +1,17 @@
+package emulator.exception;
+
+/**
+ * Thrown when a program makes the emulator fail in a way it doesn't check for itself, such as storing past the
+ * end of memory. The underlying exception is the cause.
+ */
+public class ProgramFaultException extends EmulatorException {
+
+	/**
+	 * Constructs a <code>ProgramFaultException</code> caused by the given exception.
+	 * @param cause the exception the emulator threw
+	 */
+	public ProgramFaultException(RuntimeException cause) {
+		super(cause.toString());
+		initCause(cause);
+	}
+}
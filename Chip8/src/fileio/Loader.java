@@ -1,13 +1,16 @@
 package fileio;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
- * Class offers a single static method to load a file into a byte array, which is then returned.
+ * Class offers a single static method to load a file into a byte array, which is then returned. <br>
+ * Games which may load the same ROM more than once should load it through a <code>RomStore</code>,
+ * which only reads each file once.
  *
  * @author Troy Shaw
  */
@@ -16,46 +19,42 @@ public final class Loader {
 	private Loader() {
 		//stop instantiation
 	}
-	
+
 	/**
 	 * Creates and returns a byte array containing the contents of the file.<br>
-	 * If any error occurs, null is returned.<br>
+	 * The file is read straight into the array, with no buffering in between.
 	 * <p>
 	 * The file object can't be null, and must point to a valid file.
-	 * 
+	 *
 	 * @param file the file we wish to load
-	 * @return the file as a byte array, or null if something went wrong
+	 * @return the file as a byte array
+	 * @throws IOException if the file doesn't exist, or can't be read
 	 */
-	public static byte[] load(File file) {
+	public static byte[] load(File file) throws IOException {
 		if (file == null) throw new NullPointerException();
-		if (!file.exists()) throw new IllegalArgumentException("File must exist");
-		
-		//create the byte array of appropriate size
-		byte [] fileData = new byte[(int)file.length()];
-		
-		//open the file
-		DataInputStream dis = null;
-		try {
-			dis = new DataInputStream((new FileInputStream(file)));
-		} catch (FileNotFoundException e) {
-			return null;
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return read(channel, channel.size(), file);
 		}
-		
-		//read it
-		try {
-			dis.readFully(fileData);
-		} catch (IOException e) {
-			return null;
-		} finally {
-			//try close it
-			try {
-				dis.close();
-			} catch (IOException e) {
-				//oh well
-			}
+	}
+
+	/**
+	 * Reads the given number of bytes from the channel, from its position.
+	 *
+	 * @param channel the channel
+	 * @param size the number of bytes to read
+	 * @param file the file being read, for errors
+	 * @return the bytes
+	 * @throws IOException if the channel can't be read, or ends early
+	 */
+	static byte[] read(FileChannel channel, long size, File file) throws IOException {
+		if (size > Integer.MAX_VALUE) throw new IOException("File is too large: " + file);
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) throw new EOFException("File shrank while reading: " + file);
 		}
-		
-		//return the data
-		return fileData;
+
+		return buffer.array();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,187 @@
+package fileio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the small files in a zip archive, such as a pack of ROMs, through a memory mapping of the archive. <br>
+ * The central directory is read straight from the mapping, and each entry is copied (if stored) or inflated
+ * (if deflated) from it into an array of its own, so the archive is never read through a stream or buffered twice.
+ * <p>
+ * Only what ROM packs use is supported: stored and deflated entries, without encryption or zip64.
+ *
+ * @author Troy Shaw
+ */
+final class MappedZip {
+
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int END_SIZE = 22;
+	private static final int CENTRAL_SIZE = 46;
+	private static final int LOCAL_SIZE = 30;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private MappedZip() {
+		//stop instantiation
+	}
+
+	/**
+	 * Reads every file in the archive no longer than the given size, by name in the order they are in the archive.
+	 * Directories and larger files are skipped.
+	 *
+	 * @param file the archive
+	 * @param maxSize the longest file to read
+	 * @return the files by name
+	 * @throws IOException if the archive cannot be read, is corrupt, or uses something unsupported
+	 */
+	static Map<String, byte[]> read(File file, int maxSize) throws IOException {
+		MappedByteBuffer zip;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException("Archive is too large: " + file);
+			zip = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		zip.order(ByteOrder.LITTLE_ENDIAN);
+
+		int end = findEnd(zip);
+		if (end < 0) throw new IOException("Not a zip archive: " + file);
+
+		int entries = zip.getShort(end + 10) & 0xFFFF;
+		long directory = zip.getInt(end + 16) & 0xFFFFFFFFL;
+		if (entries == 0xFFFF || directory == 0xFFFFFFFFL) throw new IOException("Zip64 archives are not supported: " + file);
+		//the central directory comes before the record ending it
+		if (directory > end) throw new IOException("Corrupt zip archive: " + file);
+
+		Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		Inflater inflater = new Inflater(true);
+		try {
+			int at = (int) directory;
+			for (int i = 0; i < entries; i++) {
+				if (at + CENTRAL_SIZE > end || zip.getInt(at) != CENTRAL_SIGNATURE)
+					throw new IOException("Corrupt zip archive: " + file);
+
+				int flags 				= zip.getShort(at + 8) & 0xFFFF;
+				int method 				= zip.getShort(at + 10) & 0xFFFF;
+				int crc 				= zip.getInt(at + 16);
+				long compressedSize 	= zip.getInt(at + 20) & 0xFFFFFFFFL;
+				long size 				= zip.getInt(at + 24) & 0xFFFFFFFFL;
+				int nameLength 			= zip.getShort(at + 28) & 0xFFFF;
+				int extraLength 		= zip.getShort(at + 30) & 0xFFFF;
+				int commentLength 		= zip.getShort(at + 32) & 0xFFFF;
+				long local 				= zip.getInt(at + 42) & 0xFFFFFFFFL;
+				if (at + CENTRAL_SIZE + nameLength + extraLength + commentLength > end)
+					throw new IOException("Corrupt zip archive: " + file);
+
+				String name = string(zip, at + CENTRAL_SIZE, nameLength);
+				at += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+
+				if (name.endsWith("/") || size > maxSize) continue;
+				if ((flags & 1) != 0) throw new IOException("Encrypted entries are not supported: " + name);
+
+				byte[] data = new byte[(int) size];
+				ByteBuffer compressed = entry(zip, local, compressedSize, file);
+				if (method == STORED) {
+					if (compressedSize != size) throw new IOException("Corrupt zip entry: " + name);
+					compressed.get(data);
+				} else if (method == DEFLATED) {
+					inflate(inflater, compressed, data, name);
+				} else {
+					throw new IOException("Unsupported compression method " + method + ": " + name);
+				}
+
+				CRC32 check = new CRC32();
+				check.update(data);
+				if ((int) check.getValue() != crc) throw new IOException("Corrupt zip entry: " + name);
+
+				files.put(name, data);
+			}
+		} finally {
+			inflater.end();
+		}
+
+		return files;
+	}
+
+	/**
+	 * Finds the end of central directory record, searching back from the end past any comment.
+	 * @param zip the archive
+	 * @return the offset of the record, or -1 if there isn't one
+	 */
+	private static int findEnd(ByteBuffer zip) {
+		int last = zip.limit() - END_SIZE;
+		int first = Math.max(0, last - 0xFFFF);
+
+		for (int at = last; at >= first; at--)
+			if (zip.getInt(at) == END_SIGNATURE) return at;
+		return -1;
+	}
+
+	/**
+	 * Returns the data of an entry, from its local header.
+	 *
+	 * @param zip the archive
+	 * @param local the offset of the entries local header
+	 * @param length the length of the data
+	 * @param file the archive file, for errors
+	 * @return the data, as a buffer sharing the mapping
+	 * @throws IOException if the header or data is outside the archive
+	 */
+	private static ByteBuffer entry(ByteBuffer zip, long local, long length, File file) throws IOException {
+		if (local + LOCAL_SIZE > zip.limit() || zip.getInt((int) local) != LOCAL_SIGNATURE)
+			throw new IOException("Corrupt zip archive: " + file);
+
+		long start = local + LOCAL_SIZE + (zip.getShort((int) local + 26) & 0xFFFF) + (zip.getShort((int) local + 28) & 0xFFFF);
+		if (start + length > zip.limit()) throw new IOException("Corrupt zip archive: " + file);
+
+		ByteBuffer data = zip.duplicate();
+		data.position((int) start).limit((int) (start + length));
+		return data;
+	}
+
+	/**
+	 * Inflates a deflated entry into the given array, which must be exactly its size.
+	 *
+	 * @param inflater the inflater, which is reset first
+	 * @param compressed the deflated data
+	 * @param data the array to inflate into
+	 * @param name the entries name, for errors
+	 * @throws IOException if the data is corrupt, or isn't the expected size
+	 */
+	private static void inflate(Inflater inflater, ByteBuffer compressed, byte[] data, String name) throws IOException {
+		inflater.reset();
+		inflater.setInput(compressed);
+
+		try {
+			int inflated = 0;
+			while (inflated < data.length && !inflater.finished()) {
+				int n = inflater.inflate(data, inflated, data.length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				inflated += n;
+			}
+			if (inflated != data.length || !inflater.finished()) throw new IOException("Corrupt zip entry: " + name);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt zip entry: " + name, e);
+		}
+	}
+
+	private static String string(ByteBuffer zip, int at, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer b = zip.duplicate();
+		b.position(at);
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
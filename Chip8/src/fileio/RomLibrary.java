@@ -0,0 +1,510 @@
+package fileio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import emulator.RomAnalysis;
+
+/**
+ * A library of the ROMs in a directory tree, with what is known of each kept in an index on disk. <br>
+ * Each ROM is hashed (see <code>RomStore.hash()</code>) and disassembled to find the instructions and quirks
+ * it uses (see <code>RomAnalysis</code>). ROMs in zip archives (ROM packs) are included, named
+ * <code>&lt;archive&gt;!&lt;name in archive&gt;</code>.
+ * <p>
+ * Opening a library only reads its index, so a collection of thousands of ROMs can be browsed and searched at once.
+ * Scanning then walks the tree, and only reads the files whose size or modification time has changed since they
+ * were indexed, reading them in parallel on the common fork-join pool. The index is rewritten if anything changed.
+ * <p>
+ * The index is a compact binary file of the root directory, then each ROM's path, file size and modification
+ * time, hash, and analysis. A missing or unreadable index is treated as empty, since it can always be rebuilt.
+ *
+ * @author Troy Shaw
+ */
+public final class RomLibrary {
+
+	/** The default index file, which remembers the last library scanned */
+	public static final File DEFAULT_INDEX = new File(System.getProperty("user.home"), ".chip8" + File.separator + "library.idx");
+
+	private static final int MAGIC = 0x43384958;	//C8IX
+	private static final int VERSION = 1;
+	private static final int HASH_SIZE = 32;
+	//the smallest an entry can be in the index: an empty source, no name, and the fixed size fields
+	private static final int MIN_ENTRY_SIZE = 2 + 1 + 8 + 8 + 2 + HASH_SIZE + 2 + 8 + 2;
+
+	//the extensions of files taken to be ROMs. Files with no extension are also taken to be ROMs
+	private static final String[] EXTENSIONS = { ".ch8", ".c8", ".ch", ".chip8", ".rom" };
+
+	/**
+	 * A ROM in the library. Entries are immutable.
+	 */
+	public static final class Entry {
+		private final String source, name;
+		private final long length, modified;
+		private final int size;
+		private final String hash;
+		private final RomAnalysis analysis;
+		//what searches are matched against
+		private final String key;
+
+		Entry(String source, String name, long length, long modified, int size, String hash, RomAnalysis analysis) {
+			this.source = source;
+			this.name = name;
+			this.length = length;
+			this.modified = modified;
+			this.size = size;
+			this.hash = hash;
+			this.analysis = analysis;
+			this.key = (getPath() + " " + RomAnalysis.quirkNames(analysis.getQuirks())).toLowerCase(Locale.ROOT);
+		}
+
+		/**
+		 * Returns the path of the ROM, relative to the root of the library, with / separating directories. <br>
+		 * ROMs in archives are <code>&lt;archive&gt;!&lt;name in archive&gt;</code>.
+		 * @return the path
+		 */
+		public String getPath() {
+			return name == null ? source : source + "!" + name;
+		}
+
+		/**
+		 * Returns the path of the file holding the ROM, which is the archive for ROMs in archives.
+		 * @return the path, relative to the root of the library
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the name of the ROM in its archive, or null if it isn't in an archive.
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the size of the ROM, in bytes.
+		 * @return the size
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * Returns the hash of the ROM, as returned by <code>RomStore.hash()</code>.
+		 * @return the hash
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Returns what the ROM does.
+		 * @return the analysis
+		 */
+		public RomAnalysis getAnalysis() {
+			return analysis;
+		}
+
+		/**
+		 * Returns if the ROM matches the given search: if every word of it (ignoring case) is in the ROM's path,
+		 * or the names of its quirks.
+		 *
+		 * @param words the words searched for, in lower case
+		 * @return true if it matches
+		 */
+		boolean matches(String[] words) {
+			for (String word : words) if (!key.contains(word)) return false;
+			return true;
+		}
+
+		//if the file holding the ROM hasn't changed since the ROM was indexed
+		boolean isCurrent(long length, long modified) {
+			return this.length == length && this.modified == modified;
+		}
+
+		@Override
+		public String toString() {
+			return getPath();
+		}
+	}
+
+	private final File indexFile;
+	//the root of the library, or null if nothing has been scanned
+	private volatile File root;
+	//the entries, sorted by path. Replaced, never changed
+	private volatile List<Entry> entries = Collections.emptyList();
+
+	/**
+	 * Opens the library kept in the given index, reading the index if there is one. <br>
+	 * Nothing is scanned until <code>scan()</code> is called.
+	 *
+	 * @param indexFile the index
+	 */
+	public RomLibrary(File indexFile) {
+		if (indexFile == null) throw new NullPointerException();
+
+		this.indexFile = indexFile;
+		readIndex();
+	}
+
+	/**
+	 * Returns the root directory of the library.
+	 * @return the root, or null if none has been scanned
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns every ROM in the library, sorted by path.
+	 * @return the entries, which can't be modified
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns the ROMs matching the given search, sorted by path. <br>
+	 * A ROM matches if each word of the search (ignoring case) is in its path, or the names of its quirks
+	 * (see <code>RomAnalysis.quirkNames()</code>).
+	 *
+	 * @param query the search
+	 * @return the matching entries
+	 */
+	public List<Entry> search(String query) {
+		List<Entry> all = entries;
+		String trimmed = query.trim().toLowerCase(Locale.ROOT);
+		if (trimmed.isEmpty()) return all;
+
+		String[] words = trimmed.split("\\s+");
+		List<Entry> found = new ArrayList<Entry>();
+		for (Entry e : all) if (e.matches(words)) found.add(e);
+
+		return found;
+	}
+
+	/**
+	 * Returns the contents of the given ROM, through the shared <code>RomStore</code>.
+	 *
+	 * @param entry the ROM
+	 * @return the ROM, which must not be written to
+	 * @throws IOException if the ROM can no longer be read
+	 */
+	public byte[] load(Entry entry) throws IOException {
+		File file = new File(root, entry.source);
+		if (entry.name == null) return RomStore.shared().load(file);
+
+		byte[] rom = RomStore.shared().loadArchive(file).get(entry.name);
+		if (rom == null) throw new IOException(entry.name + " is no longer in " + file);
+		return rom;
+	}
+
+	/**
+	 * Scans the given directory tree, updating the library and its index. <br>
+	 * If the directory is the library's root, only new files, and files whose size or modification time has changed,
+	 * are read. Otherwise the library is replaced by the new directory's ROMs. Files which can't be read are left out.
+	 *
+	 * @param dir the root of the library
+	 * @return the number of files read
+	 * @throws IOException if the directory can't be walked, or the index can't be written
+	 */
+	public synchronized int scan(File dir) throws IOException {
+		if (dir == null) throw new NullPointerException();
+		if (!dir.isDirectory()) throw new IllegalArgumentException("Must be a directory: " + dir);
+
+		File newRoot = dir.getAbsoluteFile();
+		boolean sameRoot = newRoot.equals(root);
+
+		//the indexed entries by the file holding them
+		Map<String, List<Entry>> indexed = new HashMap<String, List<Entry>>();
+		if (sameRoot) {
+			for (Entry e : entries) {
+				List<Entry> list = indexed.get(e.source);
+				if (list == null) indexed.put(e.source, list = new ArrayList<Entry>());
+				list.add(e);
+			}
+		}
+
+		final Path rootPath = newRoot.toPath();
+		final List<Entry> found = new ArrayList<Entry>();
+		final List<ScanTask> tasks = new ArrayList<ScanTask>();
+		final Map<String, List<Entry>> known = indexed;
+
+		Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				String name = file.getFileName().toString();
+				boolean archive = name.toLowerCase(Locale.ROOT).endsWith(".zip");
+				if (!attributes.isRegularFile() || !(archive || isRomFile(name, attributes.size()))) return FileVisitResult.CONTINUE;
+
+				String source = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+				long length = attributes.size();
+				long modified = attributes.lastModifiedTime().toMillis();
+
+				List<Entry> old = known.get(source);
+				if (old != null && old.get(0).isCurrent(length, modified)) found.addAll(old);
+				else tasks.add(new ScanTask(file.toFile(), source, archive, length, modified));
+
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				//unreadable files and directories are left out, rather than failing the whole scan
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		ForkJoinPool.commonPool().invoke(new AllTask(tasks));
+		//files read which hold no ROMs (such as archives of something else) change nothing
+		boolean read = false;
+		for (ScanTask t : tasks) {
+			List<Entry> roms = t.join();
+			read |= !roms.isEmpty();
+			found.addAll(roms);
+		}
+
+		Collections.sort(found, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return String.CASE_INSENSITIVE_ORDER.compare(a.getPath(), b.getPath());
+			}
+		});
+
+		//nothing changed if the same files are there, and none were read
+		boolean changed = !sameRoot || read || found.size() != entries.size();
+		root = newRoot;
+		entries = Collections.unmodifiableList(found);
+		if (changed) writeIndex();
+
+		return tasks.size();
+	}
+
+	/**
+	 * Returns if the given file is taken to be a ROM: its name has a ROM extension, or none,
+	 * and it is small enough to be a ROM.
+	 *
+	 * @param name the file name
+	 * @param size the file size
+	 * @return true if it is taken to be a ROM
+	 */
+	static boolean isRomFile(String name, long size) {
+		if (size < 2 || size > RomStore.MAX_ROM_SIZE || name.startsWith(".")) return false;
+
+		int dot = name.lastIndexOf('.');
+		if (dot == -1) return true;
+
+		String extension = name.substring(dot).toLowerCase(Locale.ROOT);
+		for (String e : EXTENSIONS) if (e.equals(extension)) return true;
+		return false;
+	}
+
+	/**
+	 * Reads one file of the library: a ROM, or an archive of them.
+	 *
+	 * @param file the file
+	 * @param source the path of the file, relative to the root
+	 * @param archive if the file is a zip archive
+	 * @param length the size of the file
+	 * @param modified the modification time of the file
+	 * @return the ROMs in the file, which is empty if it couldn't be read
+	 */
+	private static List<Entry> scanFile(File file, String source, boolean archive, long length, long modified) {
+		List<Entry> found = new ArrayList<Entry>();
+
+		try {
+			if (!archive) {
+				byte[] rom = Loader.load(file);
+				if (isRomFile(file.getName(), rom.length)) found.add(entry(source, null, length, modified, rom));
+				return found;
+			}
+
+			for (Map.Entry<String, byte[]> e : MappedZip.read(file, RomStore.MAX_ROM_SIZE).entrySet()) {
+				String name = e.getKey().substring(e.getKey().lastIndexOf('/') + 1);
+				if (isRomFile(name, e.getValue().length)) found.add(entry(source, e.getKey(), length, modified, e.getValue()));
+			}
+		} catch (IOException e) {
+			//left out, and tried again next scan
+			found.clear();
+		} catch (RuntimeException e) {
+			//corrupt in a way the reader didn't expect, which is left out just the same
+			found.clear();
+		}
+
+		return found;
+	}
+
+	private static Entry entry(String source, String name, long length, long modified, byte[] rom) {
+		return new Entry(source, name, length, modified, rom.length, RomStore.hash(rom), RomAnalysis.analyze(rom));
+	}
+
+	/**
+	 * Reads the index, leaving the library empty if there is no index or it can't be read.
+	 */
+	private void readIndex() {
+		if (!indexFile.isFile()) return;
+
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			//read rather than mapped, as a mapped file can't be replaced on some platforms until the mapping is collected
+			ByteBuffer index = ByteBuffer.wrap(Loader.read(channel, channel.size(), indexFile));
+			if (index.getInt() != MAGIC || index.getInt() != VERSION) return;
+
+			File indexRoot = new File(getString(index));
+			int count = index.getInt();
+			//a count the rest of the index can't hold is as bad as a truncated index
+			if (count < 0 || count > index.remaining() / MIN_ENTRY_SIZE) return;
+
+			List<Entry> read = new ArrayList<Entry>(count);
+			byte[] hash = new byte[HASH_SIZE];
+
+			for (int i = 0; i < count; i++) {
+				String source = getString(index);
+				String name = index.get() == 0 ? null : getString(index);
+				long length = index.getLong();
+				long modified = index.getLong();
+				int size = index.getShort() & 0xFFFF;
+				index.get(hash);
+				int instructions = index.getShort() & 0xFFFF;
+				long opcodes = index.getLong();
+				int quirks = index.getShort() & 0xFFFF;
+
+				read.add(new Entry(source, name, length, modified, size, HexFormat.of().formatHex(hash),
+						RomAnalysis.of(instructions, opcodes, quirks)));
+			}
+
+			root = indexRoot;
+			entries = Collections.unmodifiableList(read);
+		} catch (IOException e) {
+			//an index is only a cache, so a bad one is rebuilt by the next scan
+		} catch (BufferUnderflowException e) {
+			//likewise for a truncated one
+		}
+	}
+
+	/**
+	 * Writes the index, to a temporary file which then replaces the old index, so a crash never leaves half an index.
+	 * @throws IOException if the index can't be written
+	 */
+	private void writeIndex() throws IOException {
+		List<Entry> list = entries;
+		byte[] rootBytes = root.getPath().getBytes(StandardCharsets.UTF_8);
+
+		//first find the size of the index
+		int size = 4 + 4 + 2 + rootBytes.length + 4;
+		List<byte[]> sources = new ArrayList<byte[]>(list.size());
+		List<byte[]> names = new ArrayList<byte[]>(list.size());
+		for (Entry e : list) {
+			byte[] source = e.source.getBytes(StandardCharsets.UTF_8);
+			byte[] name = e.name == null ? null : e.name.getBytes(StandardCharsets.UTF_8);
+			sources.add(source);
+			names.add(name);
+			size += 2 + source.length + 1 + (name == null ? 0 : 2 + name.length) + 8 + 8 + 2 + HASH_SIZE + 2 + 8 + 2;
+		}
+
+		ByteBuffer index = ByteBuffer.allocate(size);
+		index.putInt(MAGIC).putInt(VERSION);
+		putString(index, rootBytes);
+		index.putInt(list.size());
+
+		for (int i = 0; i < list.size(); i++) {
+			Entry e = list.get(i);
+			putString(index, sources.get(i));
+			if (names.get(i) == null) {
+				index.put((byte) 0);
+			} else {
+				index.put((byte) 1);
+				putString(index, names.get(i));
+			}
+			index.putLong(e.length).putLong(e.modified).putShort((short) e.size);
+			index.put(HexFormat.of().parseHex(e.hash));
+			index.putShort((short) e.analysis.getInstructionCount());
+			index.putLong(e.analysis.getOpcodes());
+			index.putShort((short) e.analysis.getQuirks());
+		}
+		index.flip();
+
+		Path target = indexFile.toPath().toAbsolutePath();
+		Files.createDirectories(target.getParent());
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (index.hasRemaining()) channel.write(index);
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] bytes) {
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Task which reads a single file of the library.
+	 */
+	private static class ScanTask extends RecursiveTask<List<Entry>> {
+		private final File file;
+		private final String source;
+		private final boolean archive;
+		private final long length, modified;
+
+		ScanTask(File file, String source, boolean archive, long length, long modified) {
+			this.file = file;
+			this.source = source;
+			this.archive = archive;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		@Override
+		protected List<Entry> compute() {
+			return scanFile(file, source, archive, length, modified);
+		}
+	}
+
+	/**
+	 * Task which forks all the scan tasks and waits for them to finish.
+	 */
+	private static class AllTask extends RecursiveAction {
+		private final List<ScanTask> tasks;
+
+		AllTask(List<ScanTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+}
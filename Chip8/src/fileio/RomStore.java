@@ -0,0 +1,286 @@
+package fileio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A store of ROMs, each kept once and known by the SHA-256 hash of its contents. <br>
+ * Loading the same ROM again, from the same file or any other holding the same bytes, returns the very same
+ * array, so loading a game into any number of emulators costs one read and no copies.
+ * <p>
+ * The store remembers the hash, size and modification time of the files it has loaded, so loading an unchanged
+ * file again costs only a look at its attributes. ROMs are kept least recently used first, and the least recently
+ * used are dropped once they total more than the store's capacity in bytes, to be read again if loaded again.
+ * <p>
+ * Zip archives (packs of ROMs) are read through a memory mapping, without streams or buffers (see <code>MappedZip</code>).
+ * <p>
+ * The arrays returned are shared by everyone loading the same ROM, so must never be written to.
+ * This class is thread safe.
+ *
+ * @author Troy Shaw
+ */
+public final class RomStore {
+
+	/** The largest ROM, which fills memory from 512 to the end */
+	public static final int MAX_ROM_SIZE = 4096 - 512;
+
+	/** The capacity of the shared store, in bytes */
+	public static final long DEFAULT_CAPACITY = 16L << 20;
+
+	//the most files whose attributes are remembered
+	private static final int MAX_FILES = 16384;
+
+	private static final RomStore SHARED = new RomStore(DEFAULT_CAPACITY);
+
+	/**
+	 * What we know of a file we have loaded. Archives have the names of their ROMs, single ROMs have no names.
+	 */
+	private static final class Stamp {
+		final long modified, length;
+		final String[] names;
+		final String[] hashes;
+
+		Stamp(long modified, long length, String[] names, String[] hashes) {
+			this.modified = modified;
+			this.length = length;
+			this.names = names;
+			this.hashes = hashes;
+		}
+	}
+
+	private final long capacity;
+
+	//the roms by hash, least recently used first, and their total size
+	private final LinkedHashMap<String, byte[]> roms = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long size;
+
+	//the files loaded by path, least recently used first
+	private final Map<Path, Stamp> files = new LinkedHashMap<Path, Stamp>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Stamp> eldest) {
+			return size() > MAX_FILES;
+		}
+	};
+
+	//the number of loads which read a file, and which didn't need to
+	private long reads, hits;
+
+	/**
+	 * Creates a new, empty, store. <br>
+	 * Most users should share the one returned by <code>shared()</code>.
+	 *
+	 * @param capacity the most bytes of ROMs to keep. The most recently used ROM is always kept
+	 */
+	public RomStore(long capacity) {
+		if (capacity < 0) throw new IllegalArgumentException("capacity cannot be negative");
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the store shared by the whole program.
+	 * @return the shared store
+	 */
+	public static RomStore shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the contents of the given ROM file. <br>
+	 * If the file hasn't changed since it was last loaded, and the ROM is still stored, it isn't read again.
+	 *
+	 * @param file the ROM
+	 * @return the ROM, which must not be written to
+	 * @throws IOException if the file doesn't exist, can't be read, or is too large to be a ROM
+	 */
+	public byte[] load(File file) throws IOException {
+		if (file == null) throw new NullPointerException();
+
+		Path path = file.toPath().toAbsolutePath().normalize();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		long modified = attributes.lastModifiedTime().toMillis();
+		long length = attributes.size();
+
+		synchronized (this) {
+			Stamp stamp = files.get(path);
+			if (matches(stamp, modified, length) && stamp.names == null) {
+				byte[] rom = roms.get(stamp.hashes[0]);
+				if (rom != null) {
+					hits++;
+					return rom;
+				}
+			}
+		}
+
+		if (length > MAX_ROM_SIZE) throw new IOException("File is too large to be a ROM: " + file);
+
+		//read outside the lock, so one slow disk doesn't hold up everyone else
+		byte[] rom;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > MAX_ROM_SIZE) throw new IOException("File is too large to be a ROM: " + file);
+			rom = Loader.read(channel, channel.size(), file);
+		}
+		String hash = hash(rom);
+
+		synchronized (this) {
+			reads++;
+			rom = keep(hash, rom);
+			files.put(path, new Stamp(modified, length, null, new String[] { hash }));
+			return rom;
+		}
+	}
+
+	/**
+	 * Returns the ROMs in the given zip archive by their name in it, in the order they are in the archive. <br>
+	 * Directories, and files too large to be ROMs, are left out. If the archive hasn't changed since it was last
+	 * loaded, and all its ROMs are still stored, it isn't read again.
+	 *
+	 * @param zip the archive
+	 * @return the ROMs by name, which must not be written to
+	 * @throws IOException if the archive doesn't exist, can't be read, or isn't a zip archive we can read
+	 */
+	public Map<String, byte[]> loadArchive(File zip) throws IOException {
+		if (zip == null) throw new NullPointerException();
+
+		Path path = zip.toPath().toAbsolutePath().normalize();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		long modified = attributes.lastModifiedTime().toMillis();
+		long length = attributes.size();
+
+		synchronized (this) {
+			Stamp stamp = files.get(path);
+			if (matches(stamp, modified, length) && stamp.names != null) {
+				Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+				for (int i = 0; i < stamp.names.length; i++) {
+					byte[] rom = roms.get(stamp.hashes[i]);
+					if (rom == null) break;
+					entries.put(stamp.names[i], rom);
+				}
+
+				if (entries.size() == stamp.names.length) {
+					hits++;
+					return entries;
+				}
+			}
+		}
+
+		Map<String, byte[]> entries = MappedZip.read(path.toFile(), MAX_ROM_SIZE);
+		String[] names = entries.keySet().toArray(new String[entries.size()]);
+		String[] hashes = new String[names.length];
+		for (int i = 0; i < names.length; i++) hashes[i] = hash(entries.get(names[i]));
+
+		synchronized (this) {
+			reads++;
+			for (int i = 0; i < names.length; i++) entries.put(names[i], keep(hashes[i], entries.get(names[i])));
+			files.put(path, new Stamp(modified, length, names, hashes));
+			return entries;
+		}
+	}
+
+	/**
+	 * Returns the stored ROM with the given hash.
+	 *
+	 * @param hash the hash of the ROM, as returned by <code>hash()</code>
+	 * @return the ROM, which must not be written to, or null if no such ROM is stored
+	 */
+	public synchronized byte[] get(String hash) {
+		return roms.get(hash);
+	}
+
+	/**
+	 * Returns the hash the store knows the given ROM by: its SHA-256 hash, in lower case hex.
+	 *
+	 * @param rom the ROM
+	 * @return the hash
+	 */
+	public static String hash(byte[] rom) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(rom));
+		} catch (NoSuchAlgorithmException e) {
+			//every java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of ROMs stored.
+	 * @return the number of ROMs
+	 */
+	public synchronized int getRomCount() {
+		return roms.size();
+	}
+
+	/**
+	 * Returns the total size of the ROMs stored, in bytes.
+	 * @return the size
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the most bytes of ROMs the store keeps.
+	 * @return the capacity
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of loads which read the file, since the store was created.
+	 * @return the number of reads
+	 */
+	public synchronized long getReadCount() {
+		return reads;
+	}
+
+	/**
+	 * Returns the number of loads which didn't need to read the file, since the store was created.
+	 * @return the number of hits
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	private static boolean matches(Stamp stamp, long modified, long length) {
+		return stamp != null && stamp.modified == modified && stamp.length == length;
+	}
+
+	/**
+	 * Keeps the given ROM, unless one with the same hash is already kept, then drops the least recently used
+	 * ROMs until the store fits its capacity. Must hold the lock.
+	 *
+	 * @param hash the hash of the ROM
+	 * @param rom the ROM
+	 * @return the ROM kept, which is the one already kept if there was one
+	 */
+	private byte[] keep(String hash, byte[] rom) {
+		byte[] kept = roms.get(hash);
+		if (kept != null) return kept;
+
+		roms.put(hash, rom);
+		size += rom.length;
+
+		//the ROM just kept is the most recently used, so is never dropped here
+		Iterator<byte[]> eldest = roms.values().iterator();
+		while (size > capacity && roms.size() > 1) {
+			size -= eldest.next().length;
+			eldest.remove();
+		}
+
+		return rom;
+	}
+}
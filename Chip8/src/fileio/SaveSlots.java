@@ -0,0 +1,88 @@
+package fileio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Numbered save state slots on disk for a single program. <br>
+ * Each slot is a file named after a checksum of the program and the slot number, so the slots of different
+ * programs never mix. Files are read and written through <code>FileChannel</code>s.
+ *
+ * @author Troy Shaw
+ */
+public class SaveSlots {
+
+	/** The default directory save states are kept in */
+	public static final File DEFAULT_DIR = new File(System.getProperty("user.home"), ".chip8" + File.separator + "saves");
+
+	private final Path dir;
+	private final String prefix;
+
+	/**
+	 * Constructs the save slots for the given program, kept in the given directory.<br>
+	 * The directory is created when the first slot is written.
+	 * 
+	 * @param dir the directory
+	 * @param program the program the slots belong to
+	 */
+	public SaveSlots(File dir, byte[] program) {
+		if (dir == null || program == null) throw new NullPointerException();
+
+		CRC32 crc = new CRC32();
+		crc.update(program);
+
+		this.dir = dir.toPath();
+		this.prefix = String.format("%08x", crc.getValue());
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer to the given slot, replacing anything already there.
+	 * 
+	 * @param slot the slot number
+	 * @param state the save state
+	 * @throws IOException if the file couldn't be written
+	 */
+	public void write(int slot, ByteBuffer state) throws IOException {
+		Files.createDirectories(dir);
+
+		try (FileChannel channel = FileChannel.open(file(slot), StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (state.hasRemaining()) channel.write(state);
+		}
+	}
+
+	/**
+	 * Reads the given slot into the buffer, then flips the buffer ready to be read.
+	 * 
+	 * @param slot the slot number
+	 * @param state the buffer to read into, which must be big enough to hold the slot
+	 * @throws IOException if the slot is empty, or the file couldn't be read
+	 */
+	public void read(int slot, ByteBuffer state) throws IOException {
+		try (FileChannel channel = FileChannel.open(file(slot), StandardOpenOption.READ)) {
+			while (state.hasRemaining() && channel.read(state) >= 0);
+		}
+
+		state.flip();
+	}
+
+	/**
+	 * Returns if the given slot has a save state in it.
+	 * 
+	 * @param slot the slot number
+	 * @return true if the slot is used
+	 */
+	public boolean exists(int slot) {
+		return Files.exists(file(slot));
+	}
+
+	private Path file(int slot) {
+		return dir.resolve(prefix + "." + slot + ".state");
+	}
+}
@@ -1,12 +1,29 @@
 package gui;
 
+import java.awt.Toolkit;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 
 import emulator.Chip8;
+import emulator.FrameListener;
+import emulator.InputMovie;
+import emulator.Key;
+import emulator.RewindBuffer;
+import emulator.Scheduler;
+import emulator.Speaker;
 import emulator.exception.EmulatorException;
-import fileio.Loader;
+import fileio.RomLibrary;
+import fileio.RomStore;
+import fileio.SaveSlots;
 
 
 /**
@@ -20,6 +37,8 @@ public class Controller {
 	private final static int MAX_SCALE = 8;
 
 	public final static int DEFAULT_SCALE = 4;
+	//the key held to rewind
+	public final static int REWIND_KEY = KeyEvent.VK_BACK_SPACE;
 	public static boolean SOUND_ENABLED = true;
 	public static boolean PAUSED = false;
 
@@ -33,10 +52,33 @@ public class Controller {
 	private JFrame frame;
 	//the currently running thread, the game tick happens here
 	private Thread currentThread;
-	//signals to the current thread to stop running
-	private boolean hasQuit;
+	//runs the game on the current thread. Volatile as the game thread reads it too
+	private volatile Scheduler scheduler;
+	//the speed of the game, and if it is fast forwarding
+	private int instructionsPerFrame = Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME;
+	private boolean turbo;
+	//the title of the frame, which we add the speed to when fast forwarding, and the title last shown.
+	//The title shown is only used on the game thread
+	private String title;
+	private String shownTitle;
 	//cached program used for a restart
 	private byte[] program;
+	//the save slots of the current program, and the selected slot
+	private SaveSlots saveSlots;
+	private int saveSlot = 1;
+	//writes quick saves and movies for the game thread, so writing a file never holds up a frame
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Chip8 writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	//the recent history of the current game
+	private final RewindBuffer rewindBuffer = new RewindBuffer();
+	//the movie being recorded, if any
+	private InputMovie movie;
 
 	/**
 	 * Constructs a new controller with the given paramaters.
@@ -53,6 +95,149 @@ public class Controller {
 		this.emulator = emulator;
 		this.panel = panel;
 		this.infoPanel = infoPanel;
+		this.title = frame.getTitle();
+		this.shownTitle = title;
+
+		//the emulator doesn't know about sound settings, so we only beep if not muted
+		emulator.setSpeaker(new Speaker() {
+			@Override
+			public void beep() {
+				if (SOUND_ENABLED) Toolkit.getDefaultToolkit().beep();
+			}
+		});
+
+		registerKeyListener();
+	}
+
+	/**
+	 * Sets the key listener to associate the keyboard buttons with the emulators buttons, and the rewind key. <br>
+	 * Key presses are passed to the game through the scheduler, so they land between frames.
+	 */
+	private void registerKeyListener() {
+		panel.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				interacted(e.getKeyCode(), true);
+			}
+
+			@Override
+			public void keyReleased(KeyEvent e) {
+				interacted(e.getKeyCode(), false);
+			}
+
+			private void interacted(int val, boolean pushed) {
+				//the game rewinds while the rewind key is held
+				if (val == REWIND_KEY) setRewinding(pushed);
+
+				int b = Key.positionOf(val);
+				if (b != -1 && scheduler != null) scheduler.keyInteracted(b, pushed);
+			}
+		});
+	}
+
+	/**
+	 * Pauses or resumes the current game (and any game started afterwards).
+	 * @param paused true to pause
+	 */
+	public void setPaused(boolean paused) {
+		PAUSED = paused;
+		if (scheduler != null) scheduler.setPaused(paused);
+	}
+
+	/**
+	 * Turns fast forward on or off for the current game (and any game started afterwards). <br>
+	 * When fast forwarding the game runs as fast as it can, and the speed is shown in the title.
+	 * @param turbo true to fast forward
+	 */
+	public void setTurbo(boolean turbo) {
+		this.turbo = turbo;
+		if (scheduler != null) scheduler.setTurbo(turbo);
+	}
+
+	/**
+	 * Restarts the current game and starts recording a movie of it. <br>
+	 * If no game has been loaded this does nothing.
+	 * @return true if recording started
+	 */
+	public boolean startRecording() {
+		if (program == null) return false;
+
+		emulator.setSeed(System.nanoTime());
+		movie = new InputMovie(emulator.getSeed(), instructionsPerFrame, program);
+		stopGame();
+		startNewGame(program);
+
+		return true;
+	}
+
+	/**
+	 * Stops recording the current movie, and writes it to the given file. <br>
+	 * If the file is null the movie is thrown away.
+	 * @param file the file
+	 */
+	public void stopRecording(final File file) {
+		if (movie == null) return;
+
+		final InputMovie m = movie;
+		movie = null;
+
+		//the movie ends at the frame the game is at now, which we can only know on the game thread
+		if (currentThread != null && currentThread.isAlive()) {
+			scheduler.runBetweenFrames(new Runnable() {
+				@Override
+				public void run() {
+					scheduler.setMovie(null);
+					m.setLength(emulator.getFrameCount());
+					if (file != null) {
+						writer.execute(new Runnable() {
+							@Override
+							public void run() {
+								writeMovie(m, file);
+							}
+						});
+					}
+				}
+			});
+		} else if (file != null) {
+			writeMovie(m, file);
+		}
+	}
+
+	/**
+	 * Writes a movie to a file, showing a dialog if it fails.
+	 * @param movie the movie
+	 * @param file the file
+	 */
+	private void writeMovie(InputMovie movie, File file) {
+		try {
+			movie.write(file);
+		} catch (IOException e) {
+			Dialogs.showFailureDialogLater("Could not save movie: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts or stops rewinding the current game. While rewinding the game steps back a frame each frame.
+	 * @param rewinding true to rewind
+	 */
+	public void setRewinding(boolean rewinding) {
+		if (scheduler != null) scheduler.setRewinding(rewinding);
+	}
+
+	/**
+	 * Sets the speed of the emulator, as the number of instructions executed each 60hz frame.
+	 * @param instructionsPerFrame the instructions per frame
+	 */
+	public void setInstructionsPerFrame(int instructionsPerFrame) {
+		if (instructionsPerFrame <= 0) throw new IllegalArgumentException("instructions per frame must be positive");
+		//a movie is played back at the speed it was recorded, so the speed can't change part way through
+		if (movie != null) {
+			Dialogs.showFailureDialog("The speed can't be changed while recording a movie.");
+			return;
+		}
+
+		this.instructionsPerFrame = instructionsPerFrame;
+		if (scheduler != null) scheduler.setInstructionsPerFrame(instructionsPerFrame);
 	}
 
 	/**
@@ -70,6 +255,87 @@ public class Controller {
 		frame.pack();
 	}
 
+	/**
+	 * Selects the save slot used by quick save and quick load.
+	 * @param slot the slot number
+	 */
+	public void setSaveSlot(int slot) {
+		saveSlot = slot;
+	}
+
+	/**
+	 * Saves the state of the current game to the selected slot.<br>
+	 * The state is taken between frames on the game thread. If no game is running this does nothing.
+	 */
+	public void quickSave() {
+		if (currentThread == null || !currentThread.isAlive()) return;
+
+		final SaveSlots slots = saveSlots;
+		final int slot = saveSlot;
+
+		scheduler.runBetweenFrames(new Runnable() {
+			@Override
+			public void run() {
+				//only the state is taken between frames, the file is written on the writer thread
+				final ByteBuffer state = ByteBuffer.wrap(emulator.saveState());
+
+				writer.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							slots.write(slot, state);
+						} catch (IOException e) {
+							Dialogs.showFailureDialogLater("Could not save state: " + e.getMessage());
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Restores the current game to the state in the selected slot.<br>
+	 * The state is restored between frames on the game thread. If no game is running this does nothing.
+	 */
+	public void quickLoad() {
+		if (currentThread == null || !currentThread.isAlive()) return;
+		//a movie replays from its start, so can't jump to a state from outside it
+		if (movie != null) {
+			Dialogs.showFailureDialog("Quick load can't be used while recording a movie.");
+			return;
+		}
+
+		if (!saveSlots.exists(saveSlot)) {
+			Dialogs.showFailureDialog("Save slot " + saveSlot + " is empty");
+			return;
+		}
+
+		final ByteBuffer state = ByteBuffer.allocate(Chip8.STATE_SIZE);
+		try {
+			saveSlots.read(saveSlot, state);
+		} catch (IOException e) {
+			Dialogs.showFailureDialog("Could not load state: " + e.getMessage());
+			return;
+		}
+
+		scheduler.runBetweenFrames(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					emulator.loadState(state);
+				} catch (IllegalArgumentException e) {
+					Dialogs.showFailureDialogLater("Could not load state: " + e.getMessage());
+					return;
+				}
+
+				//we redraw now, in case we are paused
+				panel.draw(emulator.getPixelData());
+				emulator.resetDrawFlag();
+				infoPanel.getStatePublisher().publish(emulator);
+			}
+		});
+	}
+
 	/**
 	 * Restarts the emulator with the current game.<br>
 	 * If no game has been initially loaded, this method does nothing.
@@ -93,18 +359,34 @@ public class Controller {
 		if (file == null) throw new NullPointerException();
 		byte[] program = null;
 		
+		//the store only reads the file if it has changed since it was last loaded
 		try {
-			program = Loader.load(file);
-		} catch (IllegalArgumentException e) {
-			Dialogs.showFailureDialog("File not found");
-			return;
-		} catch (NullPointerException e) {
-			Dialogs.showFailureDialog("File was null");
+			program = RomStore.shared().load(file);
+		} catch (IOException e) {
+			Dialogs.showFailureDialog("Error while loading file: " + e.getMessage());
 			return;
 		}
 		
-		if (program == null) {
-			Dialogs.showFailureDialog("Error while loading file");
+		//stop the current game
+		stopGame();
+		//start new game
+		startNewGame(program);
+	}
+	
+	/**
+	 * Starts a new game, loading it from the given library.<br>
+	 * The library and entry cannot be null.
+	 * @param library the library
+	 * @param entry the ROM in the library
+	 */
+	public void startNewGame(RomLibrary library, RomLibrary.Entry entry) {
+		if (library == null || entry == null) throw new NullPointerException();
+		byte[] program = null;
+		
+		try {
+			program = library.load(entry);
+		} catch (IOException e) {
+			Dialogs.showFailureDialog("Error while loading file: " + e.getMessage());
 			return;
 		}
 		
@@ -122,11 +404,11 @@ public class Controller {
 	 */
 	private void stopGame() {
 		if (currentThread != null && currentThread.isAlive()) {
-			hasQuit = true;
+			scheduler.stop();
 
 			while (currentThread.isAlive())
 				try {
-					Thread.sleep(1);
+					currentThread.join();
 				} catch (InterruptedException e) {
 					//ignore
 				}
@@ -134,6 +416,10 @@ public class Controller {
 	}
 
 	private void startNewGame(byte[] program) {
+		//loading restarts the random numbers from the seed, so a new seed is needed for each game to play differently.
+		//A recording keeps its seed, so the movie replays the same random numbers
+		if (movie == null) emulator.setSeed(System.nanoTime());
+
 		try {
 			emulator.loadProgram(program);
 		} catch (IllegalArgumentException e) {
@@ -142,36 +428,60 @@ public class Controller {
 		}
 		
 		this.program = program;
+		this.saveSlots = new SaveSlots(SaveSlots.DEFAULT_DIR, program);
+		//a movie starts when its program is loaded, so starting a game starts the movie again
+		if (movie != null) movie = new InputMovie(emulator.getSeed(), instructionsPerFrame, program);
 
-		hasQuit = false;
 		panel.clear();
+		//the old game has stopped, so it is safe to clear its history here
+		rewindBuffer.clear();
 
-		currentThread = new Thread() {
+		scheduler = new Scheduler(emulator, new FrameListener() {
 			@Override
-			public void run() {
-				while (!hasQuit) {
-					if (!PAUSED) {
-						try {
-							emulator.tick();
-							infoPanel.update();
-							if (emulator.getDrawFlag()) panel.draw(emulator.getPixelData());
-						} catch (EmulatorException e) {
-							Dialogs.showFailureDialog(e.getMessage());
-							hasQuit = true;
-						}
-					}
+			public void frameCompleted(Chip8 chip8) {
+				//the info panel reads this on the event thread
+				infoPanel.getStatePublisher().publish(chip8);
+				showSpeed();
 
-					try {
-						//we need a sleep (even modest) so that key detection works properly
-						//we can assume ticks take similar time and this will suffice
-						Thread.sleep(1);
-					} catch (InterruptedException e) {
-						//ignore
-					}
+				//the panel works out which region changed when it shows the frame
+				if (chip8.getDrawFlag()) {
+					panel.draw(chip8.getPixelData());
+					chip8.resetDrawFlag();
 				}
 			}
-		};
 
+			@Override
+			public void emulatorFailed(EmulatorException e) {
+				Dialogs.showFailureDialogLater(e.getMessage());
+			}
+		});
+		scheduler.setPaused(PAUSED);
+		scheduler.setInstructionsPerFrame(instructionsPerFrame);
+		scheduler.setRewindBuffer(rewindBuffer);
+		scheduler.setTurbo(turbo);
+		scheduler.setMovie(movie);
+
+		currentThread = new Thread(scheduler, "Chip8 scheduler");
 		currentThread.start();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Shows the speed in the title when fast forwarding, and the plain title otherwise. <br>
+	 * Called on the game thread, so the title is set later on the event thread, and only when it changes.
+	 */
+	private void showSpeed() {
+		Scheduler s = scheduler;
+		String t = title;
+		if (s != null && s.isTurbo()) t += String.format(" - fast forward %.1fx", s.getSpeed());
+		if (t.equals(shownTitle)) return;
+
+		shownTitle = t;
+		final String newTitle = t;
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				frame.setTitle(newTitle);
+			}
+		});
+	}
+}
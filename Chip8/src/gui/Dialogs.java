@@ -8,6 +8,7 @@ import java.net.URL;
 
 import javax.swing.JEditorPane;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.event.HyperlinkEvent;
 import javax.swing.event.HyperlinkListener;
@@ -28,13 +29,29 @@ public class Dialogs {
 		JOptionPane.showMessageDialog(null, error, "Error!", JOptionPane.ERROR_MESSAGE);	
 	}
 
+	/**
+	 * Displays an error message from any thread. The dialog is shown later on the event thread,
+	 * so the calling thread (such as the game thread) isn't held up while it is open.
+	 * 
+	 * @param error the error message to display
+	 */
+	public static void showFailureDialogLater(final String error) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				showFailureDialog(error);
+			}
+		});
+	}
+
 	/**
 	 * Displays the programs help.
 	 */
 	public static void showHelp() {
 		String help = 	"" +
 				"This is a basic Chip8 emulator\n\n" +
-				"Click File -> load, then select a chip8 rom to play.\n\n" + 
+				"Click File -> load, then select a chip8 rom to play.\n" + 
+				"Choose a library folder to list all the roms in it, then type to search them.\n\n" + 
 				"The File menu also allows you to restart, or pause the emulator.\n\n" + 
 				"You can adjust the screen size or mute the game from the Options menu.\n\n" + 
 				"The controls are all of q,w,e,a,s,d,z,x,c,1,2,3,4,r,f,v.\n" +
@@ -4,35 +4,60 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.event.KeyAdapter;
-import java.awt.event.KeyEvent;
-import java.awt.event.KeyListener;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.Map;
+import java.awt.image.DataBufferInt;
+import java.awt.image.VolatileImage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
-import emulator.Key;
 import emulator.Chip8;
-import emulator.exception.InvalidKeyException;
 
 /**
  * The panel that displays the game currently being played.
+ * <p>
+ * The game is drawn into an image at the emulators native resolution (64 * 32), by writing its pixels directly.
+ * The image is only scaled up when it is painted, so drawing costs the same at every scale.
+ * Where the graphics configuration supports it, the image is first copied to a <code>VolatileImage</code> so the 
+ * scaling can be done by the graphics hardware.
+ * <p>
+ * Frames are handed over from the emulator thread through a <code>FrameExchange</code>, and the image is only
+ * ever written on the event dispatch thread. So a frame is never painted while it is half drawn, and the emulator
+ * never waits for painting.
  *
  * @author Troy Shaw
  */
 public class DisplayPanel extends JPanel {
 
-	//Note: there is synchronized on rescale() and draw(pixelData) because these methods can be called at the same time
-	//		and they both alter the same image. 
-	//		It is possible to change our image to a smaller one while setting pixels, thus drawing out-of-bounds on the new one.
-	
-	private static Color PIXEL_OFF_COLOR = Color.black;
-	private static Color PIXEL_ON_COLOR  = Color.white;
-	private int scale = Controller.DEFAULT_SCALE;
+	private static int PIXEL_OFF_COLOR = Color.black.getRGB();
+	private static int PIXEL_ON_COLOR  = Color.white.getRGB();
+	private volatile int scale = Controller.DEFAULT_SCALE;
 
+	//the native resolution image, and its pixels
 	private BufferedImage image;
+	private int[] raster;
+	//the accelerated copy of the image, and if it needs to be copied again
+	private VolatileImage volatileImage;
+	private volatile boolean imageChanged;
+
+	//frames drawn by the emulator, and the pixels of the one the image shows
+	private final FrameExchange frames = new FrameExchange();
+	private final long[] shown = new long[Chip8.HEIGHT];
+	//if an update is queued on the event dispatch thread
+	private final AtomicBoolean updateQueued = new AtomicBoolean();
+	private final Runnable updater = new Runnable() {
+		@Override
+		public void run() {
+			//cleared first, so a frame drawn while we update queues another
+			updateQueued.set(false);
+			update();
+		}
+	};
+
 	private Chip8 chip8;
 
 	/**
@@ -44,83 +69,99 @@ public class DisplayPanel extends JPanel {
 		this.chip8 = chip8;
 		
 		//creates our image
-		resizeDisplay(scale);
+		image = new BufferedImage(Chip8.WIDTH, Chip8.HEIGHT, BufferedImage.TYPE_INT_RGB);
+		raster = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
 		//makes it the default color
 		clear();
+		//sizes our panel
+		resizeDisplay(scale);
 		
-		//register our key listener to respond to key events
-		registerKeyListener();
-
-		//make our panel focusable
+		//make our panel focusable, key presses are handled by the controller
 		setFocusable(true);
 		requestFocusInWindow();
 	}
 
-	/**
-	 * Sets the key listener to associate the keyboard buttons with the emulators buttons.
-	 */
-	private void registerKeyListener() {
-		final Map<Integer, Integer> buttonMapping = new HashMap<Integer, Integer>();
-
-		//we put all the values from the Key enum into our mapping
-		for (Key k : Key.values()) buttonMapping.put(k.getCode(), k.getPosition());
-
-		KeyListener kl = new KeyAdapter() {
-			@Override
-			public void keyPressed(KeyEvent e) {
-				interacted(e.getKeyCode(), true);
-			}
+	@Override
+	public void paintComponent(Graphics g) {
+		int scale = this.scale;
+		Graphics2D g2 = (Graphics2D) g;
+		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		if (gc == null) {
+			//not displayable, so no acceleration is possible. We just scale the image
+			g2.drawImage(image, 0, 0, Chip8.WIDTH * scale, Chip8.HEIGHT * scale, null);
+			return;
+		}
 
-			@Override
-			public void keyReleased(KeyEvent e) {
-				interacted(e.getKeyCode(), false);
+		//the volatile image can lose its contents at any time, so we repeat until it didn't
+		do {
+			if (volatileImage == null || volatileImage.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+				volatileImage = gc.createCompatibleVolatileImage(Chip8.WIDTH, Chip8.HEIGHT);
+				imageChanged = true;
 			}
 
-			private void interacted(int val, boolean pushed) {
-				Integer b = buttonMapping.get(val);
-				if (b != null)
-					try {
-						chip8.keyInteracted(b, pushed);
-					} catch (InvalidKeyException e) {
-						//this shouldn't happen
-						Dialogs.showFailureDialog("An internal error has occured in the emulator.\nAn invalid key was pressed.");
-						System.exit(1);
-					}
+			if (imageChanged || volatileImage.contentsLost()) {
+				imageChanged = false;
+				Graphics2D vg = volatileImage.createGraphics();
+				vg.drawImage(image, 0, 0, null);
+				vg.dispose();
 			}
-		};
 
-		addKeyListener(kl);
-	}
-
-	@Override
-	public void paintComponent(Graphics g) {
-		//we just paint the current image
-		g.drawImage(image, 0, 0, null);
+			g2.drawImage(volatileImage, 0, 0, Chip8.WIDTH * scale, Chip8.HEIGHT * scale, null);
+		} while (volatileImage.contentsLost());
 	}
 
 	/**
-	 * Draws the contents of <code>data</code> to the image. 
+	 * Publishes a completed frame to be shown. <br>
+	 * The data is one long per row, with the most significant bit being the leftmost pixel. It is copied, so the
+	 * emulator is free to change it as soon as this returns. This can be called from any one thread (normally the
+	 * thread running the emulator), and never waits on the event dispatch thread.
 	 * 
 	 * @param data the pixel data we are drawing
 	 */
-	public synchronized void draw(boolean[][] data) {
-		//see note at start of class for why this method is synchronized
+	public void draw(long[] data) {
+		frames.publish(data);
 		
-		//we iterate over boolean data
-		for (int i = 0; i < data.length; i++) {
-			for (int j = 0; j < data[i].length; j++) {
-
-				//then we iterate over appropriate pixels for our current scale
-				for (int x = i * scale; x < i * scale + scale; x++) {
-					for (int y = j * scale; y < j * scale + scale; y++) {
-						Color c = data[i][j] ? PIXEL_ON_COLOR : PIXEL_OFF_COLOR;
-						image.setRGB(x, y, c.getRGB());
-					}
-				}
+		//only one update is queued at a time. Frames published before it runs are dropped, bar the newest
+		if (updateQueued.compareAndSet(false, true)) SwingUtilities.invokeLater(updater);
+	}
+
+	/**
+	 * Shows the newest frame given to <code>draw()</code>, repainting only the region that changed. <br>
+	 * Must be called on the event dispatch thread, where it is normally queued by <code>draw()</code>.
+	 */
+	public void update() {
+		long[] data = frames.take();
+		if (data == null) return;
+
+		//we compare each row to what is shown, and only write the rows which differ
+		int top = -1, bottom = -1;
+		long changedColumns = 0;
+		for (int j = 0; j < Chip8.HEIGHT; j++) {
+			long changed = data[j] ^ shown[j];
+			if (changed == 0) continue;
+
+			if (top == -1) top = j;
+			bottom = j;
+			changedColumns |= changed;
+			shown[j] = data[j];
+
+			//we shift each pixel up to the sign bit
+			long row = data[j];
+			int offset = j * Chip8.WIDTH;
+			for (int i = 0; i < Chip8.WIDTH; i++, row <<= 1) {
+				raster[offset + i] = row < 0 ? PIXEL_ON_COLOR : PIXEL_OFF_COLOR;
 			}
 		}
-		
-		repaint();
+		if (top == -1) return;
+
+		imageChanged = true;
+
+		int left = Long.numberOfLeadingZeros(changedColumns);
+		int right = Chip8.WIDTH - Long.numberOfTrailingZeros(changedColumns);
+		int scale = this.scale;
+		repaint(left * scale, top * scale, (right - left) * scale, (bottom - top + 1) * scale);
 	}
 
 	/**
@@ -134,31 +175,28 @@ public class DisplayPanel extends JPanel {
 	 * Clears the visual display back to the default color. This does not alter the pixel data stored in the emulator.
 	 */
 	public void clear() {
-		Graphics2D g = image.createGraphics();
-		g.setColor(PIXEL_OFF_COLOR);
-		g.fillRect(0, 0, image.getWidth(), image.getWidth());
+		//any frame still waiting to be shown belongs to the old game
+		frames.take();
+		Arrays.fill(shown, 0);
+		Arrays.fill(raster, PIXEL_OFF_COLOR);
+		imageChanged = true;
 
 		repaint();
 	}
 
 	/**
-	 * Resizes the panel and image to the given scale, then redraws the 
+	 * Resizes the panel to the given scale, then repaints it. <br>
+	 * The image itself is always at native resolution, so it is unchanged.
 	 * @param scale
 	 */
-	public synchronized void resizeDisplay(int scale) {
-		//see note at start of class for why this method is synchronized
-		
+	public void resizeDisplay(int scale) {
 		this.scale = scale;
 		
 		//resize our panel
 		Dimension d = new Dimension(Chip8.WIDTH * scale, Chip8.HEIGHT * scale);
 		setPreferredSize(d);
 
-		//resize our image
-		image = new BufferedImage(d.width, d.height, BufferedImage.TYPE_INT_RGB);
-		//then redraw the pixel data
-		draw(chip8.getPixelData());
 		//then to our screen
 		repaint();
 	}
-}
\ No newline at end of file
+}
@@ -1,16 +1,24 @@
 package gui;
 
 import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.Timer;
 import javax.swing.table.TableModel;
 
 import emulator.Chip8;
+import emulator.Scheduler;
+import emulator.StatePublisher;
 
 /**
  * Panel contains info of the various registers and info about the current state of the emulator.<br>
+ * The emulator thread publishes snapshots of its state to the panel's <code>StatePublisher</code>. While the panel 
+ * is showing, a timer on the event thread reads the newest snapshot 60 times a second, and updates only the 
+ * values that changed.
  *
  * @author Troy Shaw
  */
@@ -27,11 +35,17 @@ public class EmulatorInfoPanel extends JPanel {
 	private Chip8 emulator;
 	private JTable registers;
 	private JScrollPane scrollBar;
+
+	//snapshots are published here, and the newest one read into current. shown is what the table is showing
+	private final StatePublisher publisher = new StatePublisher();
+	private final StatePublisher.Snapshot current = new StatePublisher.Snapshot();
+	private final StatePublisher.Snapshot shown = new StatePublisher.Snapshot();
+	private final Timer timer;
 	
 	public EmulatorInfoPanel(Chip8 emulator) {
 		this.emulator = emulator;
 		String[] headers = {"Name", "Value"};
-		String[][] data = new String[22][2];
+		String[][] data = new String[23][2];
 		
 		for (int i = 0; i < data.length; i++) data[i][1] = "0";
 		for (int i = 0x0; i <= 0xF; i++) data[i][0] = "V" + Integer.toString(i, 16).toUpperCase();
@@ -41,6 +55,7 @@ public class EmulatorInfoPanel extends JPanel {
 		data[19][0] = "Delay timer";
 		data[20][0] = "Sound timer";
 		data[21][0] = "Keys";
+		data[22][0] = "Input lag";
 		registers = new JTable(data, headers);
 		
 		//registers.setFillsViewportHeight(true);
@@ -54,28 +69,77 @@ public class EmulatorInfoPanel extends JPanel {
 		registers.setFocusable(false);
 		scrollBar.setFocusable(false);
 		
+		timer = new Timer(1000 / Scheduler.FRAME_RATE, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				update();
+			}
+		});
+	}
+
+	/**
+	 * Returns the publisher the emulator thread should publish its state to.
+	 * @return the publisher
+	 */
+	public StatePublisher getStatePublisher() {
+		return publisher;
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		timer.start();
+	}
+
+	@Override
+	public void removeNotify() {
+		timer.stop();
+		super.removeNotify();
 	}
 	
+	/**
+	 * Shows the newest published state. Must be called on the event thread.
+	 */
 	public void update() {
+		if (!publisher.read(current)) return;
 		TableModel m = registers.getModel();
 		
-		for (int i = 0; i < 0xF; i++) {
-			m.setValueAt(Integer.toString(emulator.getRegister()[i]), i, 1);
-		}
-		m.setValueAt(Integer.toString(emulator.getIRegister()), 16, 1);
-		m.setValueAt(Integer.toString(emulator.getPC()), 17, 1);
-		m.setValueAt(Integer.toString(emulator.getSP()), 18,1);
-		m.setValueAt(Integer.toString(emulator.getDelayTimer()), 19, 1);
-		m.setValueAt(Integer.toString(emulator.getSoundTimer()), 20,1);
-		//String n = String.format("%16d", Integer.parseInt(Integer.toBinaryString(emulator.getKeys())));
-		m.setValueAt(boolString(emulator.getKeys()), 21, 1);
+		for (int i = 0; i <= 0xF; i++) set(m, i, current.registers[i], shown.registers[i]);
+		set(m, 16, current.I, shown.I);
+		set(m, 17, current.PC, shown.PC);
+		set(m, 18, current.SP, shown.SP);
+		set(m, 19, current.delayTimer, shown.delayTimer);
+		set(m, 20, current.soundTimer, shown.soundTimer);
+		if (current.keys != shown.keys) m.setValueAt(keyString(current.keys), 21, 1);
+		if (current.inputLatency != shown.inputLatency || current.averageInputLatency != shown.averageInputLatency)
+			m.setValueAt(latencyString(current.inputLatency, current.averageInputLatency), 22, 1);
+
+		System.arraycopy(current.registers, 0, shown.registers, 0, shown.registers.length);
+		shown.I = current.I;
+		shown.PC = current.PC;
+		shown.SP = current.SP;
+		shown.delayTimer = current.delayTimer;
+		shown.soundTimer = current.soundTimer;
+		shown.keys = current.keys;
+		shown.inputLatency = current.inputLatency;
+		shown.averageInputLatency = current.averageInputLatency;
+	}
+
+	//only changed values are set, so an idle game costs nothing
+	private void set(TableModel m, int row, int value, int old) {
+		if (value != old) m.setValueAt(Integer.toString(value), row, 1);
 	}
 	
-	private String boolString(boolean[] info) {
-		String s = "";
+	private String keyString(int keys) {
+		StringBuilder sb = new StringBuilder(16);
 		
-		for (boolean b : info) s += b ? 1 : 0;
+		for (int i = 0; i < 16; i++) sb.append((keys >> i) & 1);
 		
-		return s;
+		return sb.toString();
+	}
+	
+	//the last latency, then the mean, in milliseconds
+	private String latencyString(long last, long average) {
+		return String.format("%.1f ms (mean %.1f)", last / 1e6, average / 1e6);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+package gui;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import emulator.Chip8;
+
+/**
+ * Hands completed frames from the thread running the emulator to the thread painting them, without either
+ * ever waiting on the other.
+ * <p>
+ * There are three frame buffers. The producer owns one (the back), the consumer owns one (the front), and the
+ * third is shared between them. Publishing copies a frame into the back buffer then swaps it with the shared one,
+ * marking it as fresh; taking swaps the front buffer with the shared one if it is fresh. So the consumer always
+ * gets the newest frame, frames it was too slow for are dropped, and neither side ever touches a buffer the
+ * other is using.
+ * <p>
+ * There must be only one producer and one consumer thread.
+ *
+ * @author Troy Shaw
+ */
+final class FrameExchange {
+
+	//set on the shared index when it holds a frame the consumer hasn't taken
+	private static final int FRESH = 4;
+
+	private final long[][] buffers = new long[3][Chip8.HEIGHT];
+	//the index of the shared buffer, and the fresh bit
+	private final AtomicInteger shared = new AtomicInteger(1);
+
+	//only used by the producer
+	private int back = 0;
+	//only used by the consumer
+	private int front = 2;
+
+	/**
+	 * Publishes a frame, replacing any the consumer hasn't taken yet. Never blocks. <br>
+	 * Must only be called from the producer thread.
+	 *
+	 * @param pixels the frame, one long per row
+	 */
+	void publish(long[] pixels) {
+		System.arraycopy(pixels, 0, buffers[back], 0, Chip8.HEIGHT);
+		back = shared.getAndSet(back | FRESH) & ~FRESH;
+	}
+
+	/**
+	 * Takes the newest published frame, if there is one the consumer hasn't already taken. Never blocks. <br>
+	 * Must only be called from the consumer thread.
+	 *
+	 * @return the frame, or null if there is no new one. It is only valid until the next call
+	 */
+	long[] take() {
+		if ((shared.get() & FRESH) == 0) return null;
+
+		front = shared.getAndSet(front) & ~FRESH;
+		return buffers[front];
+	}
+}
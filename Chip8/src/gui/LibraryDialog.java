@@ -0,0 +1,286 @@
+package gui;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Window;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+
+import emulator.RomAnalysis;
+import fileio.RomLibrary;
+
+/**
+ * Dialog to choose a game from the ROM library, replacing a plain file chooser. <br>
+ * The library is read from its index (see <code>RomLibrary</code>), so even a large collection is listed at once,
+ * and the list is narrowed as the search is typed. Each time the dialog is shown the library is rescanned in the
+ * background, which only reads the ROMs that changed, and the list is updated when it finishes.
+ * <p>
+ * A different library folder can be chosen, and any single file can still be opened with a file chooser.
+ *
+ * @author Troy Shaw
+ */
+public class LibraryDialog extends JDialog implements ActionListener {
+
+	private static final String[] COLUMNS = { "ROM", "Size", "Instructions", "Quirks" };
+
+	private final Controller controller;
+	private final RomLibrary library;
+
+	private final JTextField search;
+	private final JTable table;
+	private final JLabel status;
+	private final JButton open, otherFile, folder, cancel;
+
+	//the entries the table is showing
+	private List<RomLibrary.Entry> shown;
+	//the thread scanning the library, or null if it isn't being scanned, and the folder to scan once it finishes,
+	//if another was chosen meanwhile. Only touched on the event thread
+	private Thread scanner;
+	private File next;
+
+	private final AbstractTableModel model = new AbstractTableModel() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public int getRowCount() {
+			return shown.size();
+		}
+
+		@Override
+		public int getColumnCount() {
+			return COLUMNS.length;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return COLUMNS[column];
+		}
+
+		@Override
+		public Object getValueAt(int row, int column) {
+			RomLibrary.Entry e = shown.get(row);
+
+			switch (column) {
+			case 0: return e.getPath();
+			case 1: return e.getSize();
+			case 2: return e.getAnalysis().getInstructionCount();
+			default: return RomAnalysis.quirkNames(e.getAnalysis().getQuirks());
+			}
+		}
+	};
+
+	/**
+	 * Creates the dialog, reading the library from the default index.
+	 *
+	 * @param owner the window the dialog belongs to
+	 * @param controller the controller games are started on
+	 */
+	public LibraryDialog(Window owner, Controller controller) {
+		super(owner, "Load ROM", ModalityType.APPLICATION_MODAL);
+		if (controller == null) throw new NullPointerException("controller cannot be null");
+
+		this.controller = controller;
+		this.library = new RomLibrary(RomLibrary.DEFAULT_INDEX);
+		this.shown = library.getEntries();
+
+		search = new JTextField();
+		table = new JTable(model);
+		status = new JLabel(" ");
+		open = new JButton("Open");
+		otherFile = new JButton("Other file...");
+		folder = new JButton("Library folder...");
+		cancel = new JButton("Cancel");
+
+		table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		table.getColumnModel().getColumn(0).setPreferredWidth(360);
+
+		search.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				filter();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				filter();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+				filter();
+			}
+		});
+
+		table.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() == 2) openSelected();
+			}
+		});
+
+		search.addActionListener(this);
+		open.addActionListener(this);
+		otherFile.addActionListener(this);
+		folder.addActionListener(this);
+		cancel.addActionListener(this);
+
+		JPanel top = new JPanel(new BorderLayout(5, 5));
+		top.add(new JLabel("Search:"), BorderLayout.WEST);
+		top.add(search, BorderLayout.CENTER);
+
+		JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+		buttons.add(folder);
+		buttons.add(otherFile);
+		buttons.add(open);
+		buttons.add(cancel);
+
+		JPanel bottom = new JPanel(new BorderLayout());
+		bottom.add(status, BorderLayout.WEST);
+		bottom.add(buttons, BorderLayout.EAST);
+
+		JPanel content = new JPanel(new BorderLayout(5, 5));
+		content.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+		content.add(top, BorderLayout.NORTH);
+		content.add(new JScrollPane(table), BorderLayout.CENTER);
+		content.add(bottom, BorderLayout.SOUTH);
+
+		setContentPane(content);
+		getRootPane().setDefaultButton(open);
+		setPreferredSize(new Dimension(720, 480));
+		pack();
+		setLocationRelativeTo(owner);
+	}
+
+	/**
+	 * Shows the dialog, rescanning the library in the background, and returns once it is closed.
+	 */
+	public void showDialog() {
+		//if a scan is still running from last time, its results will do
+		if (library.getRoot() != null && scanner == null) scan(library.getRoot());
+		updateStatus();
+		search.requestFocusInWindow();
+		setVisible(true);
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		Object o = e.getSource();
+
+		if (o == open || o == search) {
+			openSelected();
+		} else if (o == cancel) {
+			setVisible(false);
+		} else if (o == otherFile) {
+			JFileChooser chooser = new JFileChooser(library.getRoot() != null ? library.getRoot().getPath() : System.getProperty("user.home"));
+			if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+				setVisible(false);
+				controller.startNewGame(chooser.getSelectedFile());
+			}
+		} else if (o == folder) {
+			JFileChooser chooser = new JFileChooser(library.getRoot() != null ? library.getRoot().getPath() : System.getProperty("user.home"));
+			chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+			if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) scan(chooser.getSelectedFile());
+		}
+	}
+
+	/**
+	 * Starts the selected game, or the first shown if none is selected, and closes the dialog.
+	 */
+	private void openSelected() {
+		int row = table.getSelectedRow();
+		if (row == -1 && shown.size() > 0) row = 0;
+		if (row == -1) return;
+
+		setVisible(false);
+		controller.startNewGame(library, shown.get(row));
+	}
+
+	/**
+	 * Shows only the entries matching the search.
+	 */
+	private void filter() {
+		shown = library.search(search.getText());
+		model.fireTableDataChanged();
+		updateStatus();
+	}
+
+	private void updateStatus() {
+		String count = shown.size() + " of " + library.getEntries().size() + " ROMs";
+		if (next != null) status.setText(count + ", scanning, then " + next.getName() + "...");
+		else status.setText(scanner != null ? count + ", scanning..." : count);
+	}
+
+	/**
+	 * Scans the given folder on a background thread, showing the new entries once it finishes. <br>
+	 * If a scan is already running the folder is scanned after it, replacing any folder already waiting.
+	 *
+	 * @param dir the library folder
+	 */
+	private void scan(final File dir) {
+		if (scanner != null) {
+			next = dir;
+			updateStatus();
+			return;
+		}
+
+		scanner = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				String error = null;
+				try {
+					library.scan(dir);
+				} catch (IOException e) {
+					error = e.getMessage();
+				} catch (IllegalArgumentException e) {
+					//the folder has gone
+					error = e.getMessage();
+				} catch (RuntimeException e) {
+					error = e.toString();
+					throw e;
+				} finally {
+					//always let the dialog know, so it never shows a scan which has died as still running
+					final String failure = error;
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							scanner = null;
+							filter();
+
+							if (next != null) {
+								File queued = next;
+								next = null;
+								scan(queued);
+							} else if (failure != null) {
+								status.setText("Could not scan library: " + failure);
+							}
+						}
+					});
+				}
+			}
+		}, "Chip8 library scan");
+		scanner.setDaemon(true);
+		scanner.start();
+		updateStatus();
+	}
+}
@@ -14,6 +14,9 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+
+import emulator.Scheduler;
 
 /**
  * Menubar for the emulator program. 
@@ -31,19 +34,26 @@ public class MenuBar extends JMenuBar implements ActionListener {
 	
 	//headers
 	private JMenu fileMenu, optionsMenu, helpMenu;
-	private JMenu size;
+	private JMenu size, speed, slot;
 
 	//we use position in this list to know what scale we want
 	private List<JRadioButtonMenuItem> scaleButtons;
+	//we use position in this list to know what speed we want (as a multiple of the slowest speed)
+	private List<JRadioButtonMenuItem> speedButtons;
+	//we use position in this list to know what save slot we want (the first is slot 1)
+	private List<JRadioButtonMenuItem> slotButtons;
 
 	//menu items
 	private JMenuItem reset, load, exit;
+	private JMenuItem quickSave, quickLoad;
 	private JMenuItem controls;
-	private JRadioButtonMenuItem mute, pause;
+	private JRadioButtonMenuItem mute, pause, turbo, record;
 	private JMenuItem help, about;
 
 	//the controller we send events to
 	private Controller controller;
+	//the dialog games are loaded from, or null until first used
+	private LibraryDialog library;
 
 	/**
 	 * Instantiates a new <code>MenuBar</code> with the given controller.<br>
@@ -68,7 +78,14 @@ public class MenuBar extends JMenuBar implements ActionListener {
 		reset = new JMenuItem("Reset");
 		exit = new JMenuItem("Exit");
 
+		quickSave = new JMenuItem("Quick save");
+		quickLoad = new JMenuItem("Quick load");
+		slot = new JMenu("Save slot");
+		record = new JRadioButtonMenuItem("Record movie", false);
+
 		size = new JMenu("Screen size");
+		speed = new JMenu("Speed");
+		turbo = new JRadioButtonMenuItem("Fast forward", false);
 		mute = new JRadioButtonMenuItem("Mute", !Controller.SOUND_ENABLED);
 		controls = new JMenuItem("Controls");
 
@@ -85,20 +102,46 @@ public class MenuBar extends JMenuBar implements ActionListener {
 		ButtonGroup b = new ButtonGroup();
 		for (JRadioButtonMenuItem button : scaleButtons) b.add(button);
 
+		speedButtons = new ArrayList<JRadioButtonMenuItem>();
+		for (int i = 0; i < 4; i++) {
+			int ipf = speedFor(i);
+			//if the value is equal to the default speed, we 'tick' this radio button
+			speedButtons.add(new JRadioButtonMenuItem(ipf * Scheduler.FRAME_RATE + " Hz", 
+					ipf == Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME));
+		}
+
+		ButtonGroup s = new ButtonGroup();
+		for (JRadioButtonMenuItem button : speedButtons) s.add(button);
+
+		slotButtons = new ArrayList<JRadioButtonMenuItem>();
+		for (int i = 1; i <= 5; i++) slotButtons.add(new JRadioButtonMenuItem("Slot " + i, i == 1));
+
+		ButtonGroup sl = new ButtonGroup();
+		for (JRadioButtonMenuItem button : slotButtons) sl.add(button);
+
 		load.addActionListener(this);
 		pause.addActionListener(this);
 		reset.addActionListener(this);
 		exit.addActionListener(this);
+		quickSave.addActionListener(this);
+		quickLoad.addActionListener(this);
+		record.addActionListener(this);
 
 		load.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, InputEvent.CTRL_DOWN_MASK));
 		pause.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_P, InputEvent.CTRL_DOWN_MASK));
 		reset.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_R, InputEvent.CTRL_DOWN_MASK));
 		exit.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_X, InputEvent.CTRL_DOWN_MASK));
+		quickSave.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F5, 0));
+		quickLoad.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F9, 0));
 
+		turbo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK));
 		mute.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_M, InputEvent.CTRL_DOWN_MASK));
 
 		for (JRadioButtonMenuItem button : scaleButtons) button.addActionListener(this);
+		for (JRadioButtonMenuItem button : speedButtons) button.addActionListener(this);
+		for (JRadioButtonMenuItem button : slotButtons) button.addActionListener(this);
 
+		turbo.addActionListener(this);
 		mute.addActionListener(this);
 		controls.addActionListener(this);
 
@@ -110,9 +153,17 @@ public class MenuBar extends JMenuBar implements ActionListener {
 		fileMenu.add(pause);
 		fileMenu.add(reset);
 		fileMenu.addSeparator();
+		fileMenu.add(quickSave);
+		fileMenu.add(quickLoad);
+		fileMenu.add(slot);
+		fileMenu.addSeparator();
+		fileMenu.add(record);
+		fileMenu.addSeparator();
 		fileMenu.add(exit);
 
 		optionsMenu.add(size);
+		optionsMenu.add(speed);
+		optionsMenu.add(turbo);
 		optionsMenu.addSeparator();
 		optionsMenu.add(mute);
 		//TODO add a listener and some sort of menu when the controls menu-item is selected.
@@ -120,6 +171,8 @@ public class MenuBar extends JMenuBar implements ActionListener {
 		//optionsMenu.add(controls);
 
 		for (JRadioButtonMenuItem button : scaleButtons) size.add(button);
+		for (JRadioButtonMenuItem button : speedButtons) speed.add(button);
+		for (JRadioButtonMenuItem button : slotButtons) slot.add(button);
 
 		helpMenu.add(help);
 		helpMenu.addSeparator();
@@ -137,9 +190,22 @@ public class MenuBar extends JMenuBar implements ActionListener {
 		if (o == reset) {
 			controller.reset();
 		} else if (o == load) {
-			JFileChooser chooser = new JFileChooser(USER_DIR);
-			int result = chooser.showOpenDialog(null);
-			if(result == JFileChooser.APPROVE_OPTION) controller.startNewGame(chooser.getSelectedFile());
+			//created on first use, as it reads the library index
+			if (library == null) library = new LibraryDialog(SwingUtilities.getWindowAncestor(this), controller);
+			library.showDialog();
+		} else if (o == quickSave) {
+			controller.quickSave();
+		} else if (o == quickLoad) {
+			controller.quickLoad();
+		} else if (o == record) {
+			if (record.isSelected()) {
+				//recording restarts the game, so there must be one
+				record.setSelected(controller.startRecording());
+			} else {
+				JFileChooser chooser = new JFileChooser(USER_DIR);
+				int result = chooser.showSaveDialog(null);
+				controller.stopRecording(result == JFileChooser.APPROVE_OPTION ? chooser.getSelectedFile() : null);
+			}
 		} else if (o == exit) {
 			System.exit(0);
 		} else if (o == help) {
@@ -147,12 +213,31 @@ public class MenuBar extends JMenuBar implements ActionListener {
 		} else if (o == about) {
 			Dialogs.showAbout();
 		} else if (o == pause) {
-			Controller.PAUSED ^= true;
+			controller.setPaused(pause.isSelected());
+		} else if (o == turbo) {
+			controller.setTurbo(turbo.isSelected());
 		} else if (o == mute) {
 			Controller.SOUND_ENABLED ^= true;
 		} else if (o instanceof JRadioButtonMenuItem) {
 			int i = scaleButtons.indexOf(o);
 			if (i != -1) controller.resizeDisplay((int) Math.pow(2, i));
+
+			i = speedButtons.indexOf(o);
+			if (i != -1) controller.setInstructionsPerFrame(speedFor(i));
+
+			i = slotButtons.indexOf(o);
+			if (i != -1) controller.setSaveSlot(i + 1);
 		}
 	}
+
+	/**
+	 * Returns the instructions per frame of the i'th speed button. Each speed is double the last, 
+	 * with the second being the default speed.
+	 * 
+	 * @param i the index of the button
+	 * @return the instructions per frame
+	 */
+	private static int speedFor(int i) {
+		return Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME * (1 << i) / 2;
+	}
 }
\ No newline at end of file